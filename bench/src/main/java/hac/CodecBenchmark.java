@@ -0,0 +1,202 @@
+package hac;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Team Rusty Buckets
+ * High Availability Cluster: Project 1
+ * Cameron Moberg, Eli Charleville, Evan Gauer
+ */
+
+/**
+ * Encoding and decoding membership tables: the allocating AvailabilityPacket
+ * API next to the pooled writer and Reader the roles use.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark
+{
+	private static final int DELTA_CHANGES = 64;
+
+	@Param({"100", "1000", "10000", "100000"})
+	public int members;
+
+	private InetAddress[] addresses;
+	private Map<InetAddress, PacketStatus> ips;
+	private MembershipTable table;
+	private MembershipLog log;
+	private PagedPacketWriter writer;
+	private byte[][] snapshotPages;
+	private ByteBuffer[] snapshotBuffers;
+	private ByteBuffer[] compactBuffers;
+	private AvailabilityPacket.Reader reader;
+	private AddressInterner interner;
+	private int next;
+
+	@Setup
+	public void setUp()
+	{
+		addresses = Members.addresses(members);
+		ips = new HashMap<>();
+		table = new MembershipTable();
+		log = new MembershipLog(1024);
+		for (int i = 0; i < members; i++)
+		{
+			PacketStatus status = i % 10 == 0 ? PacketStatus.OFFLINE : PacketStatus.ONLINE;
+			ips.put(addresses[i], status);
+			if (status == PacketStatus.ONLINE)
+			{
+				table.markOnline(addresses[i], null, 1);
+			} else
+			{
+				table.markOffline(addresses[i]);
+			}
+			log.record(addresses[i], status);
+		}
+
+		writer = new PagedPacketWriter(new BufferPool(64, AvailabilityPacket.MAX_PACKET_SIZE, false));
+		encodeSnapshot();
+		snapshotPages = new byte[writer.pageCount()][];
+		snapshotBuffers = new ByteBuffer[writer.pageCount()];
+		for (int i = 0; i < writer.pageCount(); i++)
+		{
+			ByteBuffer page = writer.page(i);
+			snapshotPages[i] = new byte[page.remaining()];
+			page.get(snapshotPages[i]);
+			snapshotBuffers[i] = ByteBuffer.wrap(snapshotPages[i]);
+		}
+		encodeCompactSnapshot();
+		compactBuffers = new ByteBuffer[writer.pageCount()];
+		for (int i = 0; i < writer.pageCount(); i++)
+		{
+			ByteBuffer page = writer.page(i);
+			compactBuffers[i] = ByteBuffer.allocate(page.remaining());
+			compactBuffers[i].put(page).flip();
+		}
+		writer.reset();
+
+		reader = new AvailabilityPacket.Reader();
+		interner = new AddressInterner();
+	}
+
+	@Benchmark
+	public byte[] encodeSingle()
+	{
+		InetAddress address = addresses[next++ % members];
+		return new AvailabilityPacket(address, PacketStatus.FAIL, false).getPayload();
+	}
+
+	@Benchmark
+	public byte[] encodeLists()
+	{
+		return new AvailabilityPacket(ips, true).getPayload();
+	}
+
+	/**
+	 * Decodes every page of a snapshot into a fresh map per page.
+	 */
+	@Benchmark
+	public void decode(Blackhole blackhole)
+	{
+		for (byte[] page : snapshotPages)
+		{
+			blackhole.consume(new AvailabilityPacket(page).decode().getIps());
+		}
+	}
+
+	/**
+	 * Encodes the table as a paged snapshot, as a heartbeat to a peer that
+	 * is too far behind does.
+	 */
+	@Benchmark
+	public int encodeSnapshot()
+	{
+		writer.begin(0, log.version(), 0, true);
+		table.forEach(writer::put);
+		writer.finish();
+		return writer.pageCount();
+	}
+
+	/**
+	 * encodeSnapshot in version 3, which sorts the entries first.
+	 */
+	@Benchmark
+	public int encodeCompactSnapshot()
+	{
+		writer.beginCompact(0, log.version(), 0, true, false);
+		table.forEach(writer::put);
+		writer.finish();
+		return writer.pageCount();
+	}
+
+	/**
+	 * Encodes the last DELTA_CHANGES changes, as a heartbeat to a peer that
+	 * is nearly caught up does.
+	 */
+	@Benchmark
+	public int encodeDelta()
+	{
+		int version = log.version();
+		writer.begin(version - DELTA_CHANGES, version, 0, true);
+		log.writeChangesSince(writer, version - DELTA_CHANGES, members);
+		writer.finish();
+		return writer.pageCount();
+	}
+
+	/**
+	 * Walks every page of a snapshot in place, as the listeners do.
+	 */
+	@Benchmark
+	public void readSnapshot(Blackhole blackhole)
+	{
+		for (ByteBuffer page : snapshotBuffers)
+		{
+			page.rewind();
+			reader.wrap(page);
+			while (reader.next())
+			{
+				blackhole.consume(interner.intern(reader));
+				blackhole.consume(reader.status());
+			}
+		}
+	}
+
+	/**
+	 * readSnapshot over a version 3 snapshot.
+	 */
+	@Benchmark
+	public void readCompactSnapshot(Blackhole blackhole)
+	{
+		for (ByteBuffer page : compactBuffers)
+		{
+			page.rewind();
+			reader.wrap(page);
+			while (reader.next())
+			{
+				blackhole.consume(interner.intern(reader));
+				blackhole.consume(reader.status());
+			}
+		}
+	}
+}
@@ -0,0 +1,70 @@
+package hac;
+
+import java.net.InetAddress;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Queries against a LoadBalancer whose members have all reported a random
+ * load, with a tenth of them offline since the last refresh so queries have
+ * to skip some. Sampled, so the percentiles of single queries show.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LoadBalancerBenchmark
+{
+	private static final int TOP_K = 8;
+
+	@Param({"100", "1000", "10000", "100000"})
+	public int members;
+
+	private LoadBalancer balancer;
+	private InetAddress[] top = new InetAddress[TOP_K];
+
+	@Setup
+	public void setUp()
+	{
+		InetAddress[] addresses = Members.addresses(members);
+		MembershipTable table = new MembershipTable();
+		balancer = new LoadBalancer(table);
+		Random random = new Random(1);
+		for (InetAddress address : addresses)
+		{
+			table.markOnline(address, null, 1);
+			balancer.report(address, random.nextInt(1000), random.nextInt(400), 100);
+		}
+		balancer.refresh();
+		for (int i = 0; i < members; i += 10)
+		{
+			table.markOffline(addresses[i]);
+		}
+	}
+
+	@Benchmark
+	public InetAddress leastLoaded()
+	{
+		return balancer.leastLoaded();
+	}
+
+	@Benchmark
+	public int topK()
+	{
+		return balancer.leastLoaded(top);
+	}
+}
@@ -0,0 +1,41 @@
+package hac;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * Team Rusty Buckets
+ * High Availability Cluster: Project 1
+ * Cameron Moberg, Eli Charleville, Evan Gauer
+ */
+
+/**
+ * Cluster members for the benchmarks to work on.
+ */
+final class Members
+{
+	private Members()
+	{
+	}
+
+	/**
+	 * @param count Number of members.
+	 * @return count distinct IPv4 addresses in 10.0.0.0/8.
+	 */
+	static InetAddress[] addresses(int count)
+	{
+		InetAddress[] addresses = new InetAddress[count];
+		for (int i = 0; i < count; i++)
+		{
+			int host = i + 1;
+			try
+			{
+				addresses[i] = InetAddress.getByAddress(new byte[]{10, (byte) (host >> 16), (byte) (host >> 8), (byte) host});
+			} catch (UnknownHostException e)
+			{
+				throw new IllegalStateException(e);
+			}
+		}
+		return addresses;
+	}
+}
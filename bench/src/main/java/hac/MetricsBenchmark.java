@@ -0,0 +1,49 @@
+package hac;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Team Rusty Buckets
+ * High Availability Cluster: Project 1
+ * Cameron Moberg, Eli Charleville, Evan Gauer
+ */
+
+/**
+ * Cost of recording a received packet and a heartbeat interval, from four
+ * threads into one shared Metrics, which is the worst case for contention.
+ * Run with -prof gc to see that recording allocates nothing.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class MetricsBenchmark
+{
+	private final Metrics metrics = new Metrics("bench", new MembershipTable());
+
+	@Benchmark
+	public void received()
+	{
+		metrics.received(512);
+	}
+
+	@Benchmark
+	public void heartbeatInterval()
+	{
+		metrics.heartbeatInterval.record(System.nanoTime() & 0xFFFFFFFFL);
+	}
+}
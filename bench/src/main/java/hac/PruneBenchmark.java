@@ -0,0 +1,88 @@
+package hac;
+
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Team Rusty Buckets
+ * High Availability Cluster: Project 1
+ * Cameron Moberg, Eli Charleville, Evan Gauer
+ */
+
+/**
+ * One prune tick over a table whose deadlines are spread evenly across 30
+ * seconds, so each 100ms tick finds about members / 300 nodes due. The
+ * wheel benchmark is what Server and P2PNode do; expired nodes are given a
+ * new deadline as if their heartbeat had just arrived, which keeps the
+ * load steady. The scan benchmark is the full pass pruning used to make.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PruneBenchmark
+{
+	private static final long TICK = TimeUnit.MILLISECONDS.toNanos(100);
+	private static final long SPREAD = TimeUnit.SECONDS.toNanos(30);
+
+	@Param({"100", "1000", "10000", "100000"})
+	public int members;
+
+	private InetAddress[] addresses;
+	private MembershipTable table;
+	private TimingWheel<InetAddress> wheel;
+	private long now;
+	private int expired;
+
+	@Setup
+	public void setUp()
+	{
+		addresses = Members.addresses(members);
+		table = new MembershipTable();
+		now = SPREAD;
+		wheel = new TimingWheel<>(TICK, 512, now);
+		for (int i = 0; i < members; i++)
+		{
+			PhiAccrualDetector detector = new PhiAccrualDetector(8, 15500, 31000, now - SPREAD * i / members);
+			table.markOnline(addresses[i], detector, now);
+			wheel.schedule(addresses[i], now + SPREAD * i / members);
+		}
+	}
+
+	@Benchmark
+	public int wheel()
+	{
+		now += TICK;
+		expired = 0;
+		wheel.expire(now, this::expired);
+		return expired;
+	}
+
+	private void expired(InetAddress address)
+	{
+		expired++;
+		wheel.schedule(address, now + SPREAD);
+	}
+
+	@Benchmark
+	public void scan(Blackhole blackhole)
+	{
+		now += TICK;
+		table.forEach(PacketStatus.ONLINE, address -> blackhole.consume(table.detector(address).nanosUntilSuspect(now)));
+	}
+}
@@ -0,0 +1,89 @@
+package hac;
+
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Team Rusty Buckets
+ * High Availability Cluster: Project 1
+ * Cameron Moberg, Eli Charleville, Evan Gauer
+ */
+
+/**
+ * The handleStatus state machines of Client and P2PNode against a table
+ * that already holds every member. "Steady" is the common case of an entry
+ * repeating what we already know; "flip" takes a member down and back up,
+ * which is what an alert costs. Neither node is started, so nothing is
+ * actually sent.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StatusBenchmark
+{
+	@Param({"100", "1000", "10000", "100000"})
+	public int members;
+
+	private InetAddress[] addresses;
+	private boolean[] down;
+	private Client client;
+	private P2PNode node;
+	private int next;
+
+	@Setup
+	public void setUp()
+	{
+		addresses = Members.addresses(members);
+		down = new boolean[members];
+		client = new Client();
+		node = new P2PNode();
+		for (InetAddress address : addresses)
+		{
+			client.handleStatus(address, PacketStatus.ONLINE);
+			node.handleStatus(address, PacketStatus.NEW);
+		}
+	}
+
+	@Benchmark
+	public void clientSteady()
+	{
+		client.handleStatus(addresses[next++ % members], PacketStatus.ONLINE);
+	}
+
+	@Benchmark
+	public void clientFlip()
+	{
+		int i = next++ % members;
+		client.handleStatus(addresses[i], down[i] ? PacketStatus.REVIVE : PacketStatus.FAIL);
+		down[i] = !down[i];
+	}
+
+	@Benchmark
+	public void p2pSteady()
+	{
+		node.handleStatus(addresses[next++ % members], PacketStatus.ONLINE);
+	}
+
+	@Benchmark
+	public void p2pFlip()
+	{
+		int i = next++ % members;
+		node.handleStatus(addresses[i], down[i] ? PacketStatus.REVIVE : PacketStatus.FAIL);
+		down[i] = !down[i];
+	}
+}
@@ -0,0 +1,172 @@
+package hac;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Team Rusty Buckets
+ * High Availability Cluster: Project 1
+ * Cameron Moberg, Eli Charleville, Evan Gauer
+ */
+
+/**
+ * Heartbeats a P2PNode sends to a peer, read the way nodes that predate the
+ * versioned formats read them, until the peer says it reads those.
+ */
+class BaselineInteropTest
+{
+	private final InetAddress[] members = Members.addresses(3);
+	private final InetAddress peer = members[0];
+	private final InetAddress self = members[1];
+	private final InetAddress other = members[2];
+	private final List<byte[]> toPeer = new ArrayList<>();
+	private long now;
+
+	@Test
+	void unheardPeerGetsWholeTableItCanRead()
+	{
+		run(null);
+		assertFalse(toPeer.isEmpty());
+		for (byte[] datagram : toPeer)
+		{
+			Map<InetAddress, PacketStatus> ips = new HashMap<>();
+			assertTrue(decodeAsBaseline(datagram, ips));
+			assertEquals(Collections.singletonMap(other, PacketStatus.ONLINE), ips);
+		}
+	}
+
+	@Test
+	void baselinePeerKeepsGettingPlainHeartbeats()
+	{
+		ByteBuffer baseline = heartbeat();
+		// Version 1 with the flags byte as old nodes fill it, the length's low byte.
+		baseline.put(0, (byte) 1);
+		baseline.put(3, (byte) (0x80 | baseline.get(2)));
+		run(baseline);
+		assertFalse(toPeer.isEmpty());
+		for (byte[] datagram : toPeer)
+		{
+			Map<InetAddress, PacketStatus> ips = new HashMap<>();
+			assertTrue(decodeAsBaseline(datagram, ips));
+			assertEquals(PacketStatus.ONLINE, ips.get(other));
+		}
+	}
+
+	@Test
+	void peerThatReadsVersionedGetsVersioned()
+	{
+		run(heartbeat());
+		assertFalse(toPeer.isEmpty());
+		for (byte[] datagram : toPeer)
+		{
+			assertTrue(new AvailabilityPacket.Reader().wrap(ByteBuffer.wrap(datagram)).isVersioned());
+		}
+	}
+
+	/**
+	 * A plain heartbeat with no entries, as our nodes send.
+	 */
+	private static ByteBuffer heartbeat()
+	{
+		ByteBuffer buffer = ByteBuffer.allocate(AvailabilityPacket.MAX_PACKET_SIZE);
+		AvailabilityPacket.begin(buffer);
+		AvailabilityPacket.finish(buffer, true);
+		return buffer;
+	}
+
+	/**
+	 * Hears from the other member, and from peer if peerHeartbeat isn't
+	 * null, every second for a minute, keeping the heartbeats sent to peer.
+	 */
+	private void run(ByteBuffer peerHeartbeat)
+	{
+		InetSocketAddress[] addresses = new InetSocketAddress[members.length];
+		for (int i = 0; i < members.length; i++)
+		{
+			addresses[i] = new InetSocketAddress(members[i], 9999);
+		}
+		HeartbeatScheduler scheduler = new HeartbeatScheduler(() -> now, new Random(1));
+		P2PNode node = new P2PNode(new PeerList(addresses), Collections.singletonList(self), packet ->
+		{
+			// Every format keeps the heartbeat bit in the top of the flags byte.
+			if (packet.getAddress().equals(peer) && (packet.getData()[packet.getOffset() + 3] & 0x80) != 0)
+			{
+				toPeer.add(Arrays.copyOfRange(packet.getData(), packet.getOffset(),
+						packet.getOffset() + packet.getLength()));
+			}
+		}, scheduler, () -> now, new Random(1), false);
+		node.start();
+
+		long end = TimeUnit.SECONDS.toNanos(60);
+		long nextHeartbeat = 0;
+		while (now < end)
+		{
+			if (now >= nextHeartbeat)
+			{
+				node.handlePayload(other, heartbeat());
+				if (peerHeartbeat != null)
+				{
+					node.handlePayload(peer, peerHeartbeat.duplicate());
+				}
+				nextHeartbeat += TimeUnit.SECONDS.toNanos(1);
+			}
+			now = Math.min(nextHeartbeat, now + scheduler.nanosUntilNextDeadline());
+			scheduler.runDueTasks();
+		}
+	}
+
+	/**
+	 * AvailabilityPacket.decode as it was before the versioned formats,
+	 * reading into the 1024 byte buffer those nodes receive into.
+	 *
+	 * @return false if the datagram would not fit that buffer.
+	 */
+	private static boolean decodeAsBaseline(byte[] datagram, Map<InetAddress, PacketStatus> ips)
+	{
+		if (datagram.length > 1024)
+		{
+			return false;
+		}
+		byte[] payload = Arrays.copyOf(datagram, 1024);
+
+		int packetLength = (payload[1] << 8) + payload[2];
+		byte flags = payload[3];
+		boolean heartbeat = ((flags >> 7) & 1) == 1;
+		int counter = 4;
+
+		while (counter < packetLength)
+		{
+			int ipSize = payload[counter++];
+			int statusCode = payload[counter++];
+			byte[] ipAddr = Arrays.copyOfRange(payload, counter, counter + ipSize);
+
+			try
+			{
+				InetAddress address = InetAddress.getByAddress(ipAddr);
+				PacketStatus status = PacketStatus.values()[statusCode];
+				ips.put(address, status);
+			} catch (UnknownHostException e)
+			{
+				return false;
+			}
+			counter += ipSize;
+		}
+		return heartbeat;
+	}
+}
@@ -0,0 +1,67 @@
+package hac;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Team Rusty Buckets
+ * High Availability Cluster: Project 1
+ * Cameron Moberg, Eli Charleville, Evan Gauer
+ */
+
+/**
+ * TimingWheel and IndirectProber call back with their locks released, so a
+ * callback waiting on another thread that takes the lock can't deadlock.
+ */
+class LockOrderTest
+{
+	private final InetAddress[] members = Members.addresses(2);
+
+	@Test
+	void wheelExpiresOutsideItsLock()
+	{
+		TimingWheel<InetAddress> wheel = new TimingWheel<>(1, 8, 0);
+		wheel.schedule(members[0], 1);
+		boolean[] done = new boolean[1];
+		wheel.expire(2, key -> done[0] = onOtherThread(() -> wheel.schedule(key, 10)));
+		assertTrue(done[0]);
+	}
+
+	@Test
+	void proberTellsOfAcksOutsideItsLock()
+	{
+		InetAddress target = members[0];
+		boolean[] done = new boolean[1];
+		IndirectProber[] prober = new IndirectProber[1];
+		prober[0] = new IndirectProber((buffer, to) -> { }, address -> new InetSocketAddress(address, 9999),
+				address -> done[0] = onOtherThread(() -> prober[0].isSuspect(address)), new Random(1));
+		prober[0].ping(target, 0);
+		prober[0].handle(members[1], target, PacketStatus.ACK, false, 1);
+		assertTrue(done[0]);
+	}
+
+	/**
+	 * Runs task on another thread and waits a second for it.
+	 *
+	 * @return Whether it finished.
+	 */
+	private static boolean onOtherThread(Runnable task)
+	{
+		Thread thread = new Thread(task);
+		thread.start();
+		try
+		{
+			thread.join(TimeUnit.SECONDS.toMillis(1));
+		} catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		return !thread.isAlive();
+	}
+}
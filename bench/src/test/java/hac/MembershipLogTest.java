@@ -0,0 +1,82 @@
+package hac;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Team Rusty Buckets
+ * High Availability Cluster: Project 1
+ * Cameron Moberg, Eli Charleville, Evan Gauer
+ */
+
+/**
+ * Delivery of versioned messages to MembershipLog.accept, applying entries
+ * to a table only when it accepts them, as the nodes do.
+ */
+class MembershipLogTest
+{
+	private final InetAddress[] members = Members.addresses(2);
+	private final InetAddress sender = members[0];
+	private final InetAddress node = members[1];
+	private final MembershipLog log = new MembershipLog(16);
+	private final Map<InetAddress, PacketStatus> table = new HashMap<>();
+
+	private boolean deliver(int base, int tableVersion, PacketStatus status)
+	{
+		if (!log.accept(sender, base, tableVersion, 0, true))
+		{
+			return false;
+		}
+		table.put(node, status);
+		return true;
+	}
+
+	@Test
+	void staleDeltaIsNotApplied()
+	{
+		assertTrue(deliver(0, 1, PacketStatus.ONLINE));
+		assertTrue(deliver(1, 2, PacketStatus.OFFLINE));
+		assertTrue(deliver(2, 3, PacketStatus.ONLINE));
+
+		assertFalse(deliver(1, 2, PacketStatus.OFFLINE));
+		assertEquals(PacketStatus.ONLINE, table.get(node));
+		assertEquals(3, log.appliedFrom(sender));
+	}
+
+	@Test
+	void deltaPastWhatWeHaveIsNotApplied()
+	{
+		assertTrue(deliver(0, 1, PacketStatus.ONLINE));
+
+		assertFalse(deliver(2, 3, PacketStatus.OFFLINE));
+		assertEquals(PacketStatus.ONLINE, table.get(node));
+		assertEquals(1, log.appliedFrom(sender));
+	}
+
+	@Test
+	void latePageOfAppliedDeltaIsNotApplied()
+	{
+		assertTrue(deliver(0, 1, PacketStatus.ONLINE));
+		assertTrue(log.accept(sender, 1, 2, 1, true));
+		assertTrue(log.accept(sender, 1, 2, 0, false));
+		assertEquals(2, log.appliedFrom(sender));
+
+		assertFalse(log.accept(sender, 1, 2, 0, false));
+	}
+
+	@Test
+	void snapshotIsAlwaysApplied()
+	{
+		assertTrue(deliver(0, 5, PacketStatus.ONLINE));
+		assertTrue(deliver(0, 2, PacketStatus.OFFLINE));
+		assertEquals(PacketStatus.OFFLINE, table.get(node));
+		assertEquals(2, log.appliedFrom(sender));
+	}
+}
@@ -0,0 +1,109 @@
+package hac;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+/**
+ * Team Rusty Buckets
+ * High Availability Cluster: Project 1
+ * Cameron Moberg, Eli Charleville, Evan Gauer
+ */
+
+/**
+ * Restarts of a node kept by a MembershipStore, in the hac.state.dir the
+ * build sets.
+ */
+class MembershipStoreTest
+{
+	private final InetAddress[] members = Members.addresses(2);
+	private final InetAddress held = members[0];
+	private final InetAddress offline = members[1];
+
+	@BeforeEach
+	void forgetEarlierRuns() throws IOException
+	{
+		Path dir = Paths.get(System.getProperty("hac.state.dir"));
+		for (String role : new String[]{"held", "listeners"})
+		{
+			Files.deleteIfExists(dir.resolve(role + ".snapshot"));
+			Files.deleteIfExists(dir.resolve(role + ".journal"));
+		}
+	}
+
+	/**
+	 * Restores a fresh table from role's files the way the nodes do,
+	 * holding online nodes back, and starts recording it.
+	 *
+	 * @return What was restored.
+	 */
+	private static Map<InetAddress, PacketStatus> restart(String role, MembershipTable table)
+	{
+		MembershipStore store = MembershipStore.configured(role, table);
+		assertNotNull(store);
+		Map<InetAddress, PacketStatus> restored = new HashMap<>();
+		store.restore((address, status) ->
+		{
+			restored.put(address, status);
+			if (status != PacketStatus.ONLINE)
+			{
+				table.markOffline(address);
+			}
+		});
+		store.start(role + "-store");
+		return restored;
+	}
+
+	@Test
+	void heldNodeSurvivesSecondRestart()
+	{
+		MembershipTable first = new MembershipTable();
+		restart("held", first);
+		first.markOnline(held, null, 1);
+		first.markOffline(offline);
+		// The journal is written by the store's thread; a restart reads it.
+		waitForJournal();
+
+		Map<InetAddress, PacketStatus> restored = restart("held", new MembershipTable());
+		assertEquals(PacketStatus.ONLINE, restored.get(held));
+
+		// Restarted again before held was heard from or failed.
+		restored = restart("held", new MembershipTable());
+		assertEquals(PacketStatus.ONLINE, restored.get(held));
+		assertEquals(PacketStatus.OFFLINE, restored.get(offline));
+	}
+
+	@Test
+	void storeKeepsOtherListeners()
+	{
+		MembershipTable table = new MembershipTable();
+		List<InetAddress> changed = new ArrayList<>();
+		table.addListener((address, status) -> changed.add(address));
+		restart("listeners", table);
+		table.markOffline(offline);
+		assertEquals(List.of(offline), changed);
+	}
+
+	private static void waitForJournal()
+	{
+		try
+		{
+			Thread.sleep(200);
+		} catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+}
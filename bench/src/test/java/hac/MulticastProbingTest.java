@@ -0,0 +1,101 @@
+package hac;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Team Rusty Buckets
+ * High Availability Cluster: Project 1
+ * Cameron Moberg, Eli Charleville, Evan Gauer
+ */
+
+/**
+ * A node that only hears a peer's heartbeats to the multicast group, which
+ * are plain packets, still asks it to probe a silent node, as long as the
+ * peer said it answers probes.
+ */
+class MulticastProbingTest
+{
+	private final InetAddress[] members = Members.addresses(3);
+	private final InetAddress peer = members[0];
+	private final InetAddress self = members[1];
+	private final InetAddress silent = members[2];
+	private long now;
+	private boolean askedPeer;
+
+	@Test
+	void peerOnGroupIsAskedToProbe()
+	{
+		run(heartbeat());
+		assertTrue(askedPeer);
+	}
+
+	@Test
+	void peerThatPredatesProbesIsNotAsked()
+	{
+		ByteBuffer baseline = heartbeat();
+		// Version 1 with the flags byte as old nodes fill it, the length's low byte.
+		baseline.put(0, (byte) 1);
+		baseline.put(3, (byte) (0x80 | baseline.get(2)));
+		run(baseline);
+		assertFalse(askedPeer);
+	}
+
+	/**
+	 * Encoded as P2PNode's heartbeat to the group: plain, with no entries.
+	 */
+	private static ByteBuffer heartbeat()
+	{
+		ByteBuffer buffer = ByteBuffer.allocate(AvailabilityPacket.MAX_PACKET_SIZE);
+		AvailabilityPacket.begin(buffer);
+		AvailabilityPacket.finish(buffer, true);
+		return buffer;
+	}
+
+	/**
+	 * Hears from both members, then only from peer's heartbeats, every
+	 * second, until the other member has been silent a minute.
+	 */
+	private void run(ByteBuffer peerHeartbeat)
+	{
+		InetSocketAddress[] addresses = new InetSocketAddress[members.length];
+		for (int i = 0; i < members.length; i++)
+		{
+			addresses[i] = new InetSocketAddress(members[i], 9999);
+		}
+		HeartbeatScheduler scheduler = new HeartbeatScheduler(() -> now, new Random(1));
+		P2PNode node = new P2PNode(new PeerList(addresses), Collections.singletonList(self), packet ->
+		{
+			AvailabilityPacket.Reader reader = new AvailabilityPacket.Reader()
+					.wrap(ByteBuffer.wrap(packet.getData(), packet.getOffset(), packet.getLength()));
+			while (packet.getAddress().equals(peer) && reader.next())
+			{
+				askedPeer |= reader.status() == PacketStatus.PING_REQ;
+			}
+		}, scheduler, () -> now, new Random(1), false);
+		node.start();
+
+		node.handlePayload(silent, heartbeat());
+		long end = TimeUnit.SECONDS.toNanos(60);
+		long nextHeartbeat = 0;
+		while (now < end)
+		{
+			if (now >= nextHeartbeat)
+			{
+				node.handlePayload(peer, peerHeartbeat.duplicate());
+				nextHeartbeat += TimeUnit.SECONDS.toNanos(1);
+			}
+			now = Math.min(nextHeartbeat, now + scheduler.nanosUntilNextDeadline());
+			scheduler.runDueTasks();
+		}
+	}
+}
@@ -0,0 +1,103 @@
+package hac;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.DatagramPacket;
+import java.net.InetSocketAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Team Rusty Buckets
+ * High Availability Cluster: Project 1
+ * Cameron Moberg, Eli Charleville, Evan Gauer
+ */
+
+/**
+ * A round's worth of sends through a ParallelSender, which the build turns
+ * on with hac.send.parallel, over a slow and over a stalled transport.
+ */
+class ParallelSenderTest
+{
+	private static final int SENDS = 500;
+
+	private final DatagramPacket packet = new DatagramPacket(new byte[64], 64,
+			new InetSocketAddress(Members.addresses(1)[0], 9999));
+	private final AtomicInteger sent = new AtomicInteger();
+	private final LongAdder late = new LongAdder();
+
+	@Test
+	void roundBeyondThreadsIsAllSent() throws Exception
+	{
+		ParallelSender sender = ParallelSender.configured(p ->
+		{
+			sleep(5);
+			sent.incrementAndGet();
+		}, late);
+		assertNotNull(sender);
+		for (int i = 0; i < SENDS; i++)
+		{
+			sender.send(packet);
+		}
+		waitFor(SENDS);
+		assertEquals(SENDS, sent.get());
+		assertEquals(0, late.sum());
+	}
+
+	@Test
+	void sendsStuckPastTheirDeadlineAreLate() throws Exception
+	{
+		CountDownLatch stalled = new CountDownLatch(1);
+		ParallelSender sender = ParallelSender.configured(p ->
+		{
+			try
+			{
+				stalled.await();
+			} catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+			sent.incrementAndGet();
+		}, late);
+		assertNotNull(sender);
+		for (int i = 0; i < SENDS; i++)
+		{
+			sender.send(packet);
+		}
+		// Past hac.send.deadline, the workers come unstuck.
+		sleep(1500);
+		stalled.countDown();
+		waitFor(SENDS);
+		assertTrue(late.sum() > 0);
+		assertEquals(SENDS, sent.get() + late.sum());
+	}
+
+	/**
+	 * Waits up to 10 seconds for count sends to be sent or dropped as late.
+	 */
+	private void waitFor(int count)
+	{
+		long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+		while (sent.get() + late.sum() < count && System.nanoTime() - end < 0)
+		{
+			sleep(10);
+		}
+	}
+
+	private static void sleep(long millis)
+	{
+		try
+		{
+			Thread.sleep(millis);
+		} catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,135 @@
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * Team Rusty Buckets
+ * High Availability Cluster: Project 1
+ * Cameron Moberg, Eli Charleville, Evan Gauer
+ */
+
+/**
+ * Maps raw address bytes read out of a packet to one shared InetAddress per
+ * address. Lookups hash the bytes in place, so an address that has been
+ * seen before costs no allocation. Not thread safe; each listener keeps its
+ * own.
+ */
+public class AddressInterner
+{
+	private byte[][] keys = new byte[64][];
+	private InetAddress[] values = new InetAddress[64];
+	private int size;
+
+	/**
+	 * @param reader Reader positioned on an entry.
+	 * @return The InetAddress for the entry's address bytes, or null if the
+	 * bytes are not a valid address.
+	 */
+	public InetAddress intern(AvailabilityPacket.Reader reader)
+	{
+		int length = reader.addressLength();
+		int mask = keys.length - 1;
+		int slot = hash(reader, length) & mask;
+
+		while (keys[slot] != null)
+		{
+			if (matches(keys[slot], reader, length))
+			{
+				return values[slot];
+			}
+			slot = (slot + 1) & mask;
+		}
+
+		byte[] key = new byte[length];
+		reader.copyAddress(key);
+		try
+		{
+			InetAddress address = InetAddress.getByAddress(key);
+			keys[slot] = key;
+			values[slot] = address;
+			if (++size * 2 > keys.length)
+			{
+				grow();
+			}
+			return address;
+		} catch (UnknownHostException e)
+		{
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * Folds the bytes into an int a byte at a time, which is exact for IPv4,
+	 * then mixes it (murmur3's finalizer) so neighbouring addresses don't
+	 * land in neighbouring slots and build long probe runs.
+	 */
+	private static int hash(AvailabilityPacket.Reader reader, int length)
+	{
+		int h = 0;
+		for (int i = 0; i < length; i++)
+		{
+			h = Integer.rotateLeft(h, 8) ^ (reader.addressByte(i) & 0xFF);
+		}
+		return mix(h);
+	}
+
+	private static int hash(byte[] key)
+	{
+		int h = 0;
+		for (byte b : key)
+		{
+			h = Integer.rotateLeft(h, 8) ^ (b & 0xFF);
+		}
+		return mix(h);
+	}
+
+	private static int mix(int h)
+	{
+		h ^= h >>> 16;
+		h *= 0x85EBCA6B;
+		h ^= h >>> 13;
+		h *= 0xC2B2AE35;
+		return h ^ (h >>> 16);
+	}
+
+	private static boolean matches(byte[] key, AvailabilityPacket.Reader reader, int length)
+	{
+		if (key.length != length)
+		{
+			return false;
+		}
+		for (int i = 0; i < length; i++)
+		{
+			if (key[i] != reader.addressByte(i))
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void grow()
+	{
+		byte[][] oldKeys = keys;
+		InetAddress[] oldValues = values;
+		keys = new byte[oldKeys.length * 2][];
+		values = new InetAddress[oldKeys.length * 2];
+		int mask = keys.length - 1;
+
+		for (int i = 0; i < oldKeys.length; i++)
+		{
+			byte[] key = oldKeys[i];
+			if (key == null)
+			{
+				continue;
+			}
+			int slot = hash(key) & mask;
+			while (keys[slot] != null)
+			{
+				slot = (slot + 1) & mask;
+			}
+			keys[slot] = key;
+			values[slot] = oldValues[i];
+		}
+	}
+}
@@ -1,6 +1,8 @@
 import java.net.Inet6Address;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
@@ -14,11 +16,73 @@ import java.util.Map;
 /**
  * This class contains the implementation at the lowest level of the
  * packet.
+ *
+ * Three formats share the 4 byte header, version, 2 bytes of length and
+ * flags, told apart by the version byte. Version 1 is the original one:
+ * the entries follow the header, each a length byte, a status byte and
+ * the address. Its senders fill the flags byte with the low byte of the
+ * length, so only the heartbeat bit of a version 1 packet is read.
+ * Version 2 can put the versioned header, the table versions and a page
+ * index, in front of the same entries, and the rest of its flags byte is
+ * ours. Without the header it is laid out as version 1, which is how our
+ * plain packets go out: nodes that predate the versions never look at the
+ * version byte, and our own nodes learn from the flags which formats the
+ * sender reads and whether it answers probes. Version 3 is versioned too, and packs entries into runs of one
+ * address family, each entry a byte with the status in its top 3 bits
+ * and, in the low 5, how many leading bytes it shares with the entry
+ * before it, followed by only the bytes that differ. Sorted addresses
+ * from one subnet cost 2 bytes each instead of 6. A version 3 packet may
+ * also carry a roster section: 2 bits per node of an ips file both ends
+ * have loaded, so a snapshot of the whole cluster costs a quarter byte per
+ * node. Every packet we send sets READS_COMPACT, but only versioned
+ * packets are believed, so peers send us version 3 once a version 2 or 3
+ * packet of ours has said we read it. Nodes that only send version 1 never
+ * get anything versioned, only plain packets.
  */
 public class AvailabilityPacket
 {
-	private static final int HEADER_SIZE = 4;
+	// Path MTU less the IPv6 and UDP headers, so no datagram we send is
+	// fragmented whichever address family it goes over.
+	public static final int MAX_PACKET_SIZE = Integer.getInteger("hac.mtu", 1500) - 48;
+	// Largest UDP payload, receive buffers take anything a peer might send.
+	public static final int MAX_RECEIVE_SIZE = 65507;
+	// Nodes that predate the versions receive into 1024 byte buffers.
+	public static final int MAX_PLAIN_PACKET_SIZE = Math.min(MAX_PACKET_SIZE, 1024);
+
+	public static final int HEADER_SIZE = 4;
+	// baseVersion, tableVersion and ackVersion, one int each, then a short page index.
+	private static final int VERSIONED_HEADER_SIZE = 14;
+	// Plain entries, as every version reads.
 	private static final int VERSION = 1;
+	// The versioned header, then plain entries.
+	public static final int VERSIONED_VERSION = 2;
+	public static final int COMPACT_VERSION = 3;
+	private static final int HEARTBEAT_FLAG = 1 << 7;
+	private static final int VERSIONED_FLAG = 1 << 6;
+	private static final int LAST_PAGE_FLAG = 1 << 5;
+	// The sender can read version 3.
+	private static final int READS_COMPACT_FLAG = 1 << 4;
+	// A version 3 header is followed by the sender's roster id.
+	private static final int ROSTER_FLAG = 1 << 3;
+	// A load report follows the versioned header.
+	private static final int LOAD_FLAG = 1 << 2;
+	// The sender answers PING_REQ and PING, see IndirectProber.
+	private static final int PROBES_FLAG = 1 << 1;
+	// CPU load, run queue and capacity, an unsigned short each.
+	private static final int LOAD_SIZE = 6;
+	// Bits of the flags byte set before finish and kept by it.
+	private static final int BEGIN_FLAGS = VERSIONED_FLAG | LAST_PAGE_FLAG | ROSTER_FLAG | LOAD_FLAG;
+	// Version 3 section tags; runs are tagged with their address length.
+	private static final int ROSTER_SECTION = 1;
+	// Tag and entry count.
+	public static final int RUN_HEADER_SIZE = 2;
+	// Tag, roster id, first index and count.
+	public static final int ROSTER_HEADER_SIZE = 9;
+	// Roster codes, 2 bits per node.
+	public static final int ROSTER_ABSENT = 0;
+	public static final int ROSTER_OFFLINE = 1;
+	public static final int ROSTER_ONLINE = 2;
+	private static final PacketStatus[] STATUSES = PacketStatus.values();
 
 	private Map<InetAddress, PacketStatus> ips;
 	private byte[] payload;
@@ -69,35 +133,28 @@ public class AvailabilityPacket
 
 	/**
 	 * Given the current instance payload, decodes it into InetAddresses and
-	 * statuses.
+	 * statuses. Hot paths should use a Reader instead, which does not
+	 * allocate.
 	 *
 	 * @return returns packet with decoded ips.
 	 */
 	public AvailabilityPacket decode()
 	{
-		this.version = payload[0];
-
-		int packetLength = (payload[1] << 8) + payload[2];
-		byte flags = payload[3];
-		this.heartbeat = ((flags >> 7) & 1) == 1;
-		int counter = HEADER_SIZE;
+		Reader reader = new Reader().wrap(ByteBuffer.wrap(payload));
+		this.version = (byte) reader.version();
+		this.heartbeat = reader.isHeartbeat();
 
-		while (counter < packetLength)
+		while (reader.next())
 		{
-			int ipSize = payload[counter++];
-			int statusCode = payload[counter++];
-			byte[] ipAddr = Arrays.copyOfRange(payload, counter, counter + ipSize);
-
 			try
 			{
-				InetAddress address = InetAddress.getByAddress(ipAddr);
-				PacketStatus status = PacketStatus.values()[statusCode];
-				ips.put(address, status);
+				byte[] ipAddr = new byte[reader.addressLength()];
+				reader.copyAddress(ipAddr);
+				ips.put(InetAddress.getByAddress(ipAddr), reader.status());
 			} catch (UnknownHostException e)
 			{
 				e.printStackTrace();
 			}
-			counter += ipSize;
 		}
 		return this;
 	}
@@ -109,18 +166,11 @@ public class AvailabilityPacket
 	 */
 	public byte[] encodeSingle(InetAddress inetAddress, PacketStatus status)
 	{
-		byte[] bytes = new byte[1024];
-		int counter = HEADER_SIZE;
-
-		counter = copyInetAddrToPayload(bytes, counter, inetAddress, status);
-
-		bytes[0] = this.version;
-		//Give length field 2 bytes.
-		bytes[1] = (byte) ((counter >> 8) & 0xFF);
-		bytes[2] = (byte) (counter & 0xFF);
-		// If heartbeat set 7th bit to 1, else 0
-		bytes[3] = (byte) (heartbeat ? (bytes[2] | 1 << 7) : bytes[2] & ~(1 << 7));
-		return bytes;
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + entrySize(inetAddress));
+		begin(buffer);
+		putEntry(buffer, inetAddress, status);
+		finish(buffer, heartbeat);
+		return buffer.array();
 	}
 
 	/**
@@ -130,53 +180,331 @@ public class AvailabilityPacket
 	 */
 	public byte[] encodeLists()
 	{
-		byte[] bytes = new byte[1024];
-		//leave 2 bits for width
-		int counter = HEADER_SIZE;
+		int size = HEADER_SIZE;
+		if (ips != null)
+		{
+			for (InetAddress address : ips.keySet())
+			{
+				size += entrySize(address);
+			}
+		}
+
+		// Sized to fit; large tables should go through PagedPacketWriter instead.
+		ByteBuffer buffer = ByteBuffer.allocate(size);
+		begin(buffer);
 
 		if (ips != null)
 		{
 			for (Map.Entry<InetAddress, PacketStatus> entry : ips.entrySet())
 			{
-				InetAddress address = entry.getKey();
-				PacketStatus status = entry.getValue();
-				counter = copyInetAddrToPayload(bytes, counter, address, status);
+				putEntry(buffer, entry.getKey(), entry.getValue());
 			}
 		}
 
-		bytes[0] = this.version;
-		//Give length field 2 bytes.
-		bytes[1] = (byte) ((counter >> 8) & 0xFF);
-		bytes[2] = (byte) (counter & 0xFF);
-		// If heartbeat set 7th bit to 1, else 0
-		bytes[3] = (byte) (heartbeat ? (bytes[2] | 1 << 7) : bytes[2] & ~(1 << 7));
+		finish(buffer, heartbeat);
+		return buffer.array();
+	}
+
+	/**
+	 * Starts a plain packet in buffer, version 2 without the versioned
+	 * header. Follow with any number of putEntry calls and then finish. None
+	 * of these allocate, so buffers can be pooled.
+	 *
+	 * @param buffer Buffer to encode into.
+	 */
+	public static void begin(ByteBuffer buffer)
+	{
+		buffer.clear();
+		buffer.put(0, (byte) VERSIONED_VERSION);
+		buffer.put(3, (byte) 0);
+		buffer.position(HEADER_SIZE);
+	}
+
+	/**
+	 * Starts a single page versioned packet in buffer, which carries the
+	 * changes to the sender's membership table between baseVersion and
+	 * tableVersion, or a full snapshot of it when baseVersion is 0.
+	 *
+	 * @param buffer       Buffer to encode into.
+	 * @param baseVersion  Version the entries start from, 0 for a snapshot.
+	 * @param tableVersion Version of the sender's table after the entries.
+	 * @param ackVersion   Version of the receiver's table the sender has applied.
+	 */
+	public static void begin(ByteBuffer buffer, int baseVersion, int tableVersion, int ackVersion)
+	{
+		begin(buffer, baseVersion, tableVersion, ackVersion, 0);
+		markLastPage(buffer);
+	}
+
+	/**
+	 * Starts one page of a versioned message that is too big for a single
+	 * datagram. Every page repeats the versions so receivers can tell which
+	 * message it belongs to; the final page must be marked with markLastPage.
+	 *
+	 * @param buffer       Buffer to encode into.
+	 * @param baseVersion  Version the entries start from, 0 for a snapshot.
+	 * @param tableVersion Version of the sender's table after the entries.
+	 * @param ackVersion   Version of the receiver's table the sender has applied.
+	 * @param page         Index of this page, starting at 0.
+	 */
+	public static void begin(ByteBuffer buffer, int baseVersion, int tableVersion, int ackVersion, int page)
+	{
+		begin(buffer, baseVersion, tableVersion, ackVersion, page, VERSIONED_VERSION, 0);
+	}
+
+	/**
+	 * Starts one page of a versioned message in either format. Version 3
+	 * pages are filled with putRun, putCompactEntry and putRoster rather
+	 * than putEntry.
+	 *
+	 * @param buffer       Buffer to encode into.
+	 * @param baseVersion  Version the entries start from, 0 for a snapshot.
+	 * @param tableVersion Version of the sender's table after the entries.
+	 * @param ackVersion   Version of the receiver's table the sender has applied.
+	 * @param page         Index of this page, starting at 0.
+	 * @param format       VERSIONED_VERSION or COMPACT_VERSION.
+	 * @param rosterId     Our roster's id, sent in version 3 headers so the
+	 *                     receiver knows it can be sent roster sections; 0
+	 *                     if we have none.
+	 */
+	public static void begin(ByteBuffer buffer, int baseVersion, int tableVersion, int ackVersion, int page,
+			int format, int rosterId)
+	{
+		boolean roster = format == COMPACT_VERSION && rosterId != 0;
+		buffer.clear();
+		buffer.put(0, (byte) format);
+		buffer.put(3, (byte) (VERSIONED_FLAG | (roster ? ROSTER_FLAG : 0)));
+		buffer.position(HEADER_SIZE);
+		if (roster)
+		{
+			buffer.putInt(rosterId);
+		}
+		buffer.putInt(baseVersion);
+		buffer.putInt(tableVersion);
+		buffer.putInt(ackVersion);
+		buffer.putShort((short) page);
+	}
+
+	/**
+	 * Marks the versioned packet being encoded in buffer as the last page of
+	 * its message. Must be called before finish.
+	 *
+	 * @param buffer Buffer a versioned packet has been begun in.
+	 */
+	public static void markLastPage(ByteBuffer buffer)
+	{
+		buffer.put(3, (byte) (buffer.get(3) | LAST_PAGE_FLAG));
+	}
+
+	/**
+	 * Adds the sender's load to the versioned packet being encoded in
+	 * buffer. Must come straight after begin, before any entries. Only for
+	 * receivers that read version 3, older ones take it for entries. Each
+	 * value is clamped to 0 to 65535.
+	 *
+	 * @param buffer   Buffer a versioned packet has been begun in.
+	 * @param cpuLoad  CPU in use, in thousandths.
+	 * @param runQueue Load average, in hundredths of a runnable thread.
+	 * @param capacity How much work the sender can take, defined by the
+	 *                 application; higher takes more.
+	 */
+	public static void putLoad(ByteBuffer buffer, int cpuLoad, int runQueue, int capacity)
+	{
+		buffer.put(3, (byte) (buffer.get(3) | LOAD_FLAG));
+		buffer.putShort((short) clamp(cpuLoad));
+		buffer.putShort((short) clamp(runQueue));
+		buffer.putShort((short) clamp(capacity));
+	}
 
-		return bytes;
+	private static int clamp(int value)
+	{
+		return Math.max(0, Math.min(0xFFFF, value));
 	}
 
 	/**
-	 * Adds InetAddress and Status to payload.
+	 * @param address Address to be encoded.
+	 * @return Bytes the entry for address takes up in a packet.
+	 */
+	public static int entrySize(InetAddress address)
+	{
+		return 2 + ((address instanceof Inet6Address) ? 16 : 4);
+	}
+
+	/**
+	 * Adds InetAddress and Status to the packet being encoded in buffer.
 	 *
-	 * @param bytes   Array to be copied to.
-	 * @param counter Starting byte index of payload byte[] array.
+	 * @param buffer  Buffer that begin was called on.
 	 * @param address InetAddress to be copied.
 	 * @param status  Status of address to be copied.
-	 * @return New counter number in payload.
 	 */
-	private int copyInetAddrToPayload(byte[] bytes, int counter, InetAddress address, PacketStatus status)
+	public static void putEntry(ByteBuffer buffer, InetAddress address, PacketStatus status)
 	{
 		// 4 if Ipv4 (4 bytes), 16 if ipv6 (16 bytes)
-		bytes[counter++] = (byte) ((address instanceof Inet6Address) ? 16 : 4);
+		buffer.put((byte) ((address instanceof Inet6Address) ? 16 : 4));
 		// Set bit to the packet status code.
-		bytes[counter++] = (byte) status.getStatusCode();
+		buffer.put((byte) status.getStatusCode());
 		// Copy IP Address over
-		byte[] ip = address.getAddress();
-		System.arraycopy(ip, 0, bytes, counter, ip.length);
-		counter += ip.length;
+		buffer.put(address.getAddress());
+	}
+
+	/**
+	 * Adds a raw 4 or 16 byte address and status to the packet being encoded
+	 * in buffer.
+	 *
+	 * @param buffer  Buffer that begin was called on.
+	 * @param address Address bytes in network order.
+	 * @param status  Status of address to be copied.
+	 */
+	public static void putEntry(ByteBuffer buffer, byte[] address, PacketStatus status)
+	{
+		buffer.put((byte) address.length);
+		buffer.put((byte) status.getStatusCode());
+		buffer.put(address);
+	}
+
+	/**
+	 * @param addressLength 4 or 16.
+	 * @return Most bytes a version 3 entry for such an address takes up.
+	 */
+	public static int compactEntrySize(int addressLength)
+	{
+		return 1 + addressLength;
+	}
+
+	/**
+	 * Starts a run of version 3 entries of one address family.
+	 *
+	 * @param buffer        Buffer a version 3 page has been begun in.
+	 * @param addressLength 4 or 16.
+	 * @return Where the run's count goes, for endRun.
+	 */
+	public static int putRun(ByteBuffer buffer, int addressLength)
+	{
+		buffer.put((byte) addressLength);
+		buffer.put((byte) 0);
+		return buffer.position() - 1;
+	}
+
+	/**
+	 * Closes a run started by putRun.
+	 *
+	 * @param buffer Buffer the run is in.
+	 * @param run    What putRun returned.
+	 * @param count  Entries in the run, at most 255.
+	 */
+	public static void endRun(ByteBuffer buffer, int run, int count)
+	{
+		buffer.put(run, (byte) count);
+	}
+
+	/**
+	 * Adds a version 3 entry to the current run, writing only the bytes of
+	 * address that differ from previous, and then copies address into
+	 * previous. previous must be all zeros at the start of each run.
+	 *
+	 * @param buffer   Buffer a run has been started in.
+	 * @param previous Address of the entry before, as long as address.
+	 * @param address  Address bytes in network order.
+	 * @param status   Status of address.
+	 */
+	public static void putCompactEntry(ByteBuffer buffer, byte[] previous, byte[] address, PacketStatus status)
+	{
+		int shared = 0;
+		while (shared < address.length && address[shared] == previous[shared])
+		{
+			shared++;
+		}
+		buffer.put((byte) ((status.getStatusCode() << 5) | shared));
+		buffer.put(address, shared, address.length - shared);
+		System.arraycopy(address, shared, previous, shared, address.length - shared);
+	}
+
+	/**
+	 * Adds a roster section: the codes of count consecutive roster nodes
+	 * starting at first, 2 bits each.
+	 *
+	 * @param buffer   Buffer a version 3 page has been begun in.
+	 * @param rosterId Id of the roster the indexes are into.
+	 * @param codes    ROSTER_ABSENT, ROSTER_OFFLINE or ROSTER_ONLINE for
+	 *                 every node of the roster.
+	 * @param first    Index of the first node in the section.
+	 * @param count    Nodes in the section, at most 65535.
+	 */
+	public static void putRoster(ByteBuffer buffer, int rosterId, byte[] codes, int first, int count)
+	{
+		buffer.put((byte) ROSTER_SECTION);
+		buffer.putInt(rosterId);
+		buffer.putShort((short) first);
+		buffer.putShort((short) count);
+		for (int i = 0; i < count; i += 4)
+		{
+			int packed = 0;
+			for (int j = 0; j < 4 && i + j < count; j++)
+			{
+				packed |= codes[first + i + j] << (6 - 2 * j);
+			}
+			buffer.put((byte) packed);
+		}
+	}
+
+	/**
+	 * @param count Nodes in a roster section.
+	 * @return Bytes the section takes up.
+	 */
+	public static int rosterSize(int count)
+	{
+		return ROSTER_HEADER_SIZE + (count + 3) / 4;
+	}
 
-		return counter;
+	/**
+	 * Identifies a roster by its addresses, in order, so two nodes that
+	 * loaded the same ips file agree on it.
+	 *
+	 * @return A non zero id for roster.
+	 */
+	public static int rosterId(InetSocketAddress[] roster)
+	{
+		int h = roster.length;
+		for (InetSocketAddress node : roster)
+		{
+			for (byte b : node.getAddress().getAddress())
+			{
+				h = h * 31 + b;
+			}
+			h = h * 31 + node.getPort();
+		}
+		// murmur3's 32 bit finalizer.
+		h ^= h >>> 16;
+		h *= 0x85EBCA6B;
+		h ^= h >>> 13;
+		h *= 0xC2B2AE35;
+		h ^= h >>> 16;
+		return h == 0 ? 1 : h;
 	}
 
+	/**
+	 * Writes the header for the entries put so far and flips buffer so it is
+	 * ready to send.
+	 *
+	 * @param buffer    Buffer that begin was called on.
+	 * @param heartbeat Whether or not this also should heartbeat.
+	 */
+	public static void finish(ByteBuffer buffer, boolean heartbeat)
+	{
+		int counter = buffer.position();
+		int begun = buffer.get(3) & BEGIN_FLAGS;
+
+		// The version byte was written by begin.
+		//Give length field 2 bytes.
+		buffer.put(1, (byte) ((counter >> 8) & 0xFF));
+		buffer.put(2, (byte) (counter & 0xFF));
+		// If heartbeat set 7th bit to 1, the next two mark the versioned header
+		// and the last page of a versioned message, then that we read version
+		// 3, that a roster id follows, that a load report does and that we
+		// answer probes.
+		buffer.put(3, (byte) ((heartbeat ? HEARTBEAT_FLAG : 0) | READS_COMPACT_FLAG | PROBES_FLAG | begun));
+		buffer.flip();
+	}
 
 	public boolean isHeartbeat()
 	{
@@ -192,4 +520,483 @@ public class AvailabilityPacket
 	{
 		return this.payload;
 	}
+
+	/**
+	 * Flyweight over an encoded packet. Walks the entries in place and exposes
+	 * each one as raw address bytes plus a status code, so reading a packet
+	 * allocates nothing. One Reader can be reused for every packet. Version
+	 * 3 entries are expanded into a scratch address as they are reached;
+	 * roster sections need useRoster, and are skipped as malformed without
+	 * it or if the sender's roster is another one.
+	 */
+	public static class Reader
+	{
+		private ByteBuffer buffer;
+		private int version;
+		private boolean heartbeat;
+		private boolean readsCompact;
+		private boolean answersProbes;
+		private int senderRoster;
+		private boolean versioned;
+		private int baseVersion;
+		private int tableVersion;
+		private int ackVersion;
+		private int page;
+		private boolean lastPage;
+		private boolean load;
+		private int cpuLoad;
+		private int runQueue;
+		private int capacity;
+		private boolean malformed;
+		private int end;
+		private int next;
+		private int entry;
+		private int addressLength;
+		// Version 3: current address and status, entries left in the current
+		// run, and position in the current roster section.
+		private final byte[] address = new byte[16];
+		private int statusCode;
+		private int runLeft;
+		private int rosterNext;
+		private int rosterFirst;
+		private int rosterNode;
+		private int rosterEnd;
+		private int rosterId;
+		private byte[][] roster;
+
+		/**
+		 * Lets roster sections be read, for a node that has loaded a roster.
+		 *
+		 * @param rosterId  Id of the roster, from AvailabilityPacket.rosterId.
+		 * @param addresses Address bytes of every roster node, in order.
+		 */
+		public void useRoster(int rosterId, byte[][] addresses)
+		{
+			this.rosterId = rosterId;
+			this.roster = addresses;
+		}
+
+		/**
+		 * Points the reader at the packet between buffer's position and limit.
+		 *
+		 * @param buffer Buffer holding a received packet.
+		 * @return this reader, positioned before the first entry.
+		 */
+		public Reader wrap(ByteBuffer buffer)
+		{
+			int start = buffer.position();
+			this.buffer = buffer;
+			this.next = start + HEADER_SIZE;
+			this.end = next;
+			this.addressLength = 0;
+			this.version = 0;
+			this.heartbeat = false;
+			this.readsCompact = false;
+			this.answersProbes = false;
+			this.senderRoster = 0;
+			this.versioned = false;
+			this.baseVersion = 0;
+			this.tableVersion = 0;
+			this.ackVersion = 0;
+			this.page = 0;
+			this.lastPage = true;
+			this.load = false;
+			this.runLeft = 0;
+			this.rosterNode = 0;
+			this.rosterEnd = 0;
+			this.malformed = buffer.limit() - start < HEADER_SIZE;
+
+			if (!malformed)
+			{
+				int packetLength = ((buffer.get(start + 1) & 0xFF) << 8) | (buffer.get(start + 2) & 0xFF);
+				this.version = buffer.get(start);
+				int flags = buffer.get(start + 3);
+				if (version < VERSIONED_VERSION)
+				{
+					// The rest of a version 1 flags byte is part of the length.
+					flags &= HEARTBEAT_FLAG;
+				}
+				this.heartbeat = (flags & HEARTBEAT_FLAG) != 0;
+				this.readsCompact = version == COMPACT_VERSION || (flags & READS_COMPACT_FLAG) != 0;
+				this.answersProbes = (flags & PROBES_FLAG) != 0;
+				this.end = Math.min(buffer.limit(), start + packetLength);
+				this.malformed = end < start + packetLength;
+				if (version < VERSION || version > COMPACT_VERSION)
+				{
+					// Not a format we know; its entries can't be trusted.
+					this.malformed = true;
+					this.next = end;
+					return this;
+				}
+
+				if (version == COMPACT_VERSION && (flags & ROSTER_FLAG) != 0)
+				{
+					if (end - next < 4)
+					{
+						this.malformed = true;
+						this.next = end;
+						return this;
+					}
+					this.senderRoster = buffer.getInt(next);
+					this.next += 4;
+				}
+
+				boolean hasHeader = version >= VERSIONED_VERSION && (flags & VERSIONED_FLAG) != 0;
+				if (hasHeader && end - next >= VERSIONED_HEADER_SIZE)
+				{
+					this.versioned = true;
+					this.baseVersion = buffer.getInt(next);
+					this.tableVersion = buffer.getInt(next + 4);
+					this.ackVersion = buffer.getInt(next + 8);
+					this.page = buffer.getShort(next + 12) & 0xFFFF;
+					this.lastPage = (flags & LAST_PAGE_FLAG) != 0;
+					this.next += VERSIONED_HEADER_SIZE;
+				} else if (hasHeader)
+				{
+					this.malformed = true;
+				}
+
+				if (versioned && (flags & LOAD_FLAG) != 0 && end - next >= LOAD_SIZE)
+				{
+					this.load = true;
+					this.cpuLoad = buffer.getShort(next) & 0xFFFF;
+					this.runQueue = buffer.getShort(next + 2) & 0xFFFF;
+					this.capacity = buffer.getShort(next + 4) & 0xFFFF;
+					this.next += LOAD_SIZE;
+				} else if (versioned && (flags & LOAD_FLAG) != 0)
+				{
+					this.malformed = true;
+				}
+			}
+			return this;
+		}
+
+		/**
+		 * Moves to the next entry.
+		 *
+		 * @return false once there are no more complete entries.
+		 */
+		public boolean next()
+		{
+			if (version == COMPACT_VERSION)
+			{
+				return nextCompact();
+			}
+			if (next + 2 > end)
+			{
+				malformed |= next < end;
+				return false;
+			}
+			int size = buffer.get(next);
+			if ((size != 4 && size != 16) || next + 2 + size > end)
+			{
+				next = end;
+				malformed = true;
+				return false;
+			}
+			entry = next;
+			addressLength = size;
+			statusCode = buffer.get(next + 1);
+			next += 2 + size;
+			return true;
+		}
+
+		private boolean nextCompact()
+		{
+			while (true)
+			{
+				if (runLeft > 0)
+				{
+					return nextInRun();
+				}
+				if (rosterNode < rosterEnd)
+				{
+					if (nextInRoster())
+					{
+						return true;
+					}
+					continue;
+				}
+				if (next >= end)
+				{
+					return false;
+				}
+
+				int tag = buffer.get(next);
+				if ((tag == 4 || tag == 16) && next + RUN_HEADER_SIZE <= end)
+				{
+					addressLength = tag;
+					runLeft = buffer.get(next + 1) & 0xFF;
+					Arrays.fill(address, (byte) 0);
+					next += RUN_HEADER_SIZE;
+				} else if (tag == ROSTER_SECTION && next + ROSTER_HEADER_SIZE <= end)
+				{
+					int id = buffer.getInt(next + 1);
+					int first = buffer.getShort(next + 5) & 0xFFFF;
+					int count = buffer.getShort(next + 7) & 0xFFFF;
+					int sectionEnd = next + rosterSize(count);
+					if (sectionEnd > end || roster == null || id != rosterId || first + count > roster.length)
+					{
+						// Can't tell whose nodes these are.
+						malformed = true;
+						next = Math.min(sectionEnd, end);
+						continue;
+					}
+					rosterNext = next + ROSTER_HEADER_SIZE;
+					rosterFirst = first;
+					rosterNode = first;
+					rosterEnd = first + count;
+					next = sectionEnd;
+				} else
+				{
+					next = end;
+					malformed = true;
+					return false;
+				}
+			}
+		}
+
+		private boolean nextInRun()
+		{
+			runLeft--;
+			if (next >= end)
+			{
+				runLeft = 0;
+				malformed = true;
+				return false;
+			}
+			int packed = buffer.get(next) & 0xFF;
+			int shared = packed & 0x1F;
+			int differ = addressLength - shared;
+			if (differ < 0 || next + 1 + differ > end)
+			{
+				runLeft = 0;
+				next = end;
+				malformed = true;
+				return false;
+			}
+			for (int i = 0; i < differ; i++)
+			{
+				address[shared + i] = buffer.get(next + 1 + i);
+			}
+			statusCode = packed >>> 5;
+			next += 1 + differ;
+			return true;
+		}
+
+		/**
+		 * Moves to the next roster node with a status in the section.
+		 *
+		 * @return false if the section ran out first.
+		 */
+		private boolean nextInRoster()
+		{
+			while (rosterNode < rosterEnd)
+			{
+				int i = rosterNode - rosterFirst;
+				int code = (buffer.get(rosterNext + i / 4) >> (6 - 2 * (i % 4))) & 3;
+				int node = rosterNode++;
+				if (code == ROSTER_OFFLINE || code == ROSTER_ONLINE)
+				{
+					byte[] bytes = roster[node];
+					addressLength = bytes.length;
+					System.arraycopy(bytes, 0, address, 0, bytes.length);
+					statusCode = code == ROSTER_ONLINE ? PacketStatus.ONLINE.getStatusCode()
+							: PacketStatus.OFFLINE.getStatusCode();
+					return true;
+				}
+			}
+			return false;
+		}
+
+		/**
+		 * @return Whether the packet was cut short or held something other
+		 * than whole entries, as far as the reader has got. Only final once
+		 * next has returned false.
+		 */
+		public boolean isMalformed()
+		{
+			return malformed;
+		}
+
+		public int version()
+		{
+			return version;
+		}
+
+		/**
+		 * @return Whether the sender can read version 2 packets; nodes that
+		 * predate them only send version 1.
+		 */
+		public boolean readsVersioned()
+		{
+			return version >= VERSIONED_VERSION;
+		}
+
+		/**
+		 * @return Whether the sender can read version 3 packets.
+		 */
+		public boolean readsCompact()
+		{
+			return readsCompact;
+		}
+
+		/**
+		 * @return Whether the sender answers probes. Nodes that predate them
+		 * fail on their status codes, so they must never be sent one.
+		 */
+		public boolean answersProbes()
+		{
+			return answersProbes;
+		}
+
+		/**
+		 * @return Whether the packet says which versions its sender reads:
+		 * it is version 2 or 3, or a version 1 heartbeat, which only nodes
+		 * that predate the other versions send. Their other packets say
+		 * nothing.
+		 */
+		public boolean tellsFormats()
+		{
+			return version >= VERSIONED_VERSION || heartbeat;
+		}
+
+		/**
+		 * @return Id of the roster the sender has loaded, 0 if it sent none.
+		 */
+		public int senderRoster()
+		{
+			return senderRoster;
+		}
+
+		public boolean isHeartbeat()
+		{
+			return heartbeat;
+		}
+
+		/**
+		 * @return Whether the packet has the versioned header.
+		 */
+		public boolean isVersioned()
+		{
+			return versioned;
+		}
+
+		/**
+		 * @return Version the entries start from, 0 for a snapshot.
+		 */
+		public int baseVersion()
+		{
+			return baseVersion;
+		}
+
+		/**
+		 * @return Version of the sender's table after the entries.
+		 */
+		public int tableVersion()
+		{
+			return tableVersion;
+		}
+
+		/**
+		 * @return Version of our table the sender has applied.
+		 */
+		public int ackVersion()
+		{
+			return ackVersion;
+		}
+
+		/**
+		 * @return Index of this page within its versioned message.
+		 */
+		public int page()
+		{
+			return page;
+		}
+
+		/**
+		 * @return Whether this is the final page of its versioned message.
+		 * Always true for unversioned packets.
+		 */
+		public boolean isLastPage()
+		{
+			return lastPage;
+		}
+
+		/**
+		 * @return Whether the packet carries the sender's load.
+		 */
+		public boolean hasLoad()
+		{
+			return load;
+		}
+
+		/**
+		 * @return CPU in use, in thousandths, if hasLoad.
+		 */
+		public int cpuLoad()
+		{
+			return cpuLoad;
+		}
+
+		/**
+		 * @return Load average, in hundredths, if hasLoad.
+		 */
+		public int runQueue()
+		{
+			return runQueue;
+		}
+
+		/**
+		 * @return Application defined capacity, if hasLoad.
+		 */
+		public int capacity()
+		{
+			return capacity;
+		}
+
+		/**
+		 * @return 4 for IPv4 entries, 16 for IPv6 entries.
+		 */
+		public int addressLength()
+		{
+			return addressLength;
+		}
+
+		public int statusCode()
+		{
+			return statusCode;
+		}
+
+		/**
+		 * @return Status of the current entry, or null if the code is unknown.
+		 */
+		public PacketStatus status()
+		{
+			int code = statusCode();
+			return code >= 0 && code < STATUSES.length ? STATUSES[code] : null;
+		}
+
+		/**
+		 * @param i Index into the current address, 0 is the most significant byte.
+		 * @return Byte of the current address.
+		 */
+		public byte addressByte(int i)
+		{
+			return version == COMPACT_VERSION ? address[i] : buffer.get(entry + 2 + i);
+		}
+
+		/**
+		 * Copies the current address into dst, which must hold addressLength bytes.
+		 *
+		 * @param dst Array to copy into.
+		 */
+		public void copyAddress(byte[] dst)
+		{
+			for (int i = 0; i < addressLength; i++)
+			{
+				dst[i] = addressByte(i);
+			}
+		}
+	}
 }
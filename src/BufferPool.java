@@ -0,0 +1,61 @@
+import java.nio.ByteBuffer;
+
+/**
+ * Team Rusty Buckets
+ * High Availability Cluster: Project 1
+ * Cameron Moberg, Eli Charleville, Evan Gauer
+ */
+
+/**
+ * Fixed size pool of packet buffers so encoding and sending a packet does
+ * not allocate. Buffers are handed out cleared and must be released once
+ * the send is done. If the pool runs dry a new buffer is allocated rather
+ * than blocking, and released buffers past capacity are dropped.
+ */
+public class BufferPool
+{
+	private final ByteBuffer[] free;
+	private final int bufferSize;
+	private final boolean direct;
+	private int count;
+
+	/**
+	 * @param capacity   Most buffers kept around for reuse.
+	 * @param bufferSize Size in bytes of each buffer.
+	 * @param direct     Whether to allocate direct (off heap) buffers.
+	 */
+	public BufferPool(int capacity, int bufferSize, boolean direct)
+	{
+		this.free = new ByteBuffer[capacity];
+		this.bufferSize = bufferSize;
+		this.direct = direct;
+	}
+
+	/**
+	 * @return A cleared buffer, from the pool if one is free.
+	 */
+	public synchronized ByteBuffer acquire()
+	{
+		if (count > 0)
+		{
+			ByteBuffer buffer = free[--count];
+			free[count] = null;
+			buffer.clear();
+			return buffer;
+		}
+		return direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+	}
+
+	/**
+	 * Returns buffer to the pool. The caller must not touch it afterwards.
+	 *
+	 * @param buffer Buffer previously returned by acquire.
+	 */
+	public synchronized void release(ByteBuffer buffer)
+	{
+		if (count < free.length && buffer.capacity() == bufferSize)
+		{
+			free[count++] = buffer;
+		}
+	}
+}
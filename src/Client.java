@@ -1,95 +1,127 @@
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.NetworkInterface;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
-import java.time.Duration;
-import java.time.Instant;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.List;
-import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.TimeUnit;
 
 public class Client
 {
 	private static int PORT_NUM = 6969;
+	private static int MULTICAST_PORT = Integer.getInteger("hac.multicast.port", PORT_NUM);
+	// File listing every shard of a sharded master, used instead of masterIp.
+	private static String SHARDS_FILE = System.getProperty("hac.shards");
+	// Silence from the master after which we try the next one in masterIp.
+	private static int MASTER_TIMEOUT_SEC = Integer.getInteger("hac.master.timeout", 35);
+	// Report our load on heartbeats to masters that read it.
+	private static boolean REPORT_LOAD = Boolean.getBoolean("hac.load");
 
 	private DatagramSocket socket;
-	private String masterIp = readMasterIp();
-	private Random random = new Random();
+	// Masters in order of preference; we heartbeat whichever last heartbeated us.
+	private PeerList master = SHARDS_FILE == null ? new PeerList("masterIp") : null;
+	private volatile int masterIndex;
+	private volatile long lastMasterHeartbeat = System.nanoTime();
+	private PeerList shards = SHARDS_FILE == null ? null : new PeerList(SHARDS_FILE);
+	private ConsistentHashRing ring;
+	// Our address as the shards see it, which picks our shard.
+	private InetAddress selfAddress;
+	private MulticastGroup multicast = MulticastGroup.configured(MULTICAST_PORT);
+	private HeartbeatScheduler scheduler = new HeartbeatScheduler();
 
-	private List<InetAddress> onlineIpList = new ArrayList<>();
-	private List<InetAddress> offlineIpList = new ArrayList<>();
+	private MembershipTable membership = new MembershipTable();
+	private MembershipEvents events = new MembershipEvents();
+	private StatusReporter reporter = new StatusReporter(membership);
+	private Metrics metrics = new Metrics("client", membership);
 	private List<InetAddress> localIpList;
 
+	private byte[] receiveBytes = new byte[AvailabilityPacket.MAX_RECEIVE_SIZE];
+	private DatagramPacket receivePacket = new DatagramPacket(receiveBytes, receiveBytes.length);
+	private ByteBuffer receiveBuffer = ByteBuffer.wrap(receiveBytes);
+	private AvailabilityPacket.Reader reader = new AvailabilityPacket.Reader();
+	private AddressInterner interner = new AddressInterner();
+	private ByteBuffer heartbeatBuffer = ByteBuffer.allocate(AvailabilityPacket.MAX_PACKET_SIZE);
+	private DatagramPacket heartbeatPacket = new DatagramPacket(heartbeatBuffer.array(), 0);
+	// Clients publish no table of their own, this only tracks what we've
+	// applied of the master's.
+	private MembershipLog membershipLog = new MembershipLog(1);
+	private volatile int capacity = Integer.getInteger("hac.load.capacity", 100);
+	// Answers the master's probes and relays them to other clients; clients
+	// never suspect anyone themselves.
+	private IndirectProber prober = new IndirectProber(this::sendProbe, this::peerAddress, null,
+			new Random());
+
 	/**
-	 * Receives packet, and hands off to another method
+	 * Receives packet into the reused receive buffer, and hands off to
+	 * another method
 	 */
 	public void listenPacket()
 	{
-		byte[] buffer = new byte[1024];
-		DatagramPacket dP = new DatagramPacket(buffer, buffer.length);
+		receivePacket.setLength(receiveBytes.length);
 		try
 		{
-			socket.receive(dP);
+			socket.receive(receivePacket);
 		} catch (SocketTimeoutException ignored)
 		{
 			return;
 		} catch (IOException e)
 		{
 			e.printStackTrace();
+			return;
 		}
-		handlePayload(dP);
+		handlePayload(receivePacket);
 	}
 
 	public void handleStatus(InetAddress address, PacketStatus status)
 	{
+		PacketStatus previous;
 		switch (status)
 		{
 			case NEW:
-				if (!onlineIpList.contains(address))
+				if (!membership.isOnline(address))
 				{
-					System.out.println("New Node Available");
-					onlineIpList.add(address);
-					offlineIpList.remove(address);
+					reporter.report("New Node Available");
+					membership.markOnline(address, null, System.nanoTime());
+					events.publish(address, status);
 				}
 				break;
 			case REVIVE:
-				if (!onlineIpList.contains(address))
+				if (!membership.isOnline(address))
 				{
-					System.out.println("Node revived " + address.getHostAddress());
-					onlineIpList.add(address);
-					offlineIpList.remove(address);
+					reporter.report("Node revived " + address.getHostAddress());
+					membership.markOnline(address, null, System.nanoTime());
+					events.publish(address, status);
 				}
 				break;
 			case OFFLINE:
 			case FAIL:
-				if (!offlineIpList.contains(address))
+				if (membership.status(address) != PacketStatus.OFFLINE)
 				{
-					System.out.println("Node Offline/Failed " + address.getHostAddress());
-					offlineIpList.add(address);
-					onlineIpList.remove(address);
+					reporter.report("Node Offline/Failed " + address.getHostAddress());
+					membership.markOffline(address);
+					events.publish(address, status);
 				}
 				break;
 			case ONLINE:
-				if (!onlineIpList.contains(address))
+				if (!membership.isOnline(address))
 				{
-					if (offlineIpList.contains(address))
+					previous = membership.markOnline(address, null, System.nanoTime());
+					events.publish(address, status);
+					if (previous == PacketStatus.OFFLINE)
 					{
-						System.out.println("New Node Available - Alerting (Revived)");
-						onlineIpList.add(address);
-						offlineIpList.remove(address);
+						reporter.report("New Node Available - Alerting (Revived)");
 					} else
 					{
-						System.out.println("New Node Available - Alerting (New)");
-						onlineIpList.add(address);
-						offlineIpList.remove(address);
+						reporter.report("New Node Available - Alerting (New)");
 					}
 				}
 				break;
@@ -103,45 +135,99 @@ public class Client
 	 */
 	public void handlePayload(DatagramPacket packet)
 	{
-		AvailabilityPacket decoded = new AvailabilityPacket(packet.getData()).decode();
+		ByteBuffer buffer = packet.getData() == receiveBytes ? receiveBuffer : ByteBuffer.wrap(packet.getData());
+		buffer.limit(packet.getOffset() + packet.getLength()).position(packet.getOffset());
+		handlePayload(packet.getAddress(), buffer);
+	}
 
-		if (decoded.isHeartbeat())
+	/**
+	 * Walks the packet in buffer in place and applies each entry's status.
+	 *
+	 * @param sender Address the packet came from.
+	 * @param buffer Buffer holding the packet between position and limit.
+	 */
+	public void handlePayload(InetAddress sender, ByteBuffer buffer)
+	{
+		metrics.received(buffer.remaining());
+		reader.wrap(buffer);
+		if (reader.tellsFormats())
+		{
+			membershipLog.heard(sender, reader.readsVersioned(), reader.readsCompact(), reader.answersProbes(), 0);
+		}
+
+		if (reader.isHeartbeat())
 		{
 			//Handle sender of packet
-			handleStatus(packet.getAddress(), PacketStatus.ONLINE);
+			long now = System.nanoTime();
+			followMaster(sender, now);
+			long lastSeen = membership.lastSeen(sender);
+			if (lastSeen != 0 && (!reader.isVersioned() || reader.page() == 0))
+			{
+				metrics.heartbeatInterval.record(now - lastSeen);
+			}
+			handleStatus(sender, PacketStatus.ONLINE);
+			membership.touch(sender, now);
 		}
 
-		for (Map.Entry<InetAddress, PacketStatus> entry : decoded.getIps().entrySet())
+		if (reader.isVersioned() && !membershipLog.accept(sender, reader.baseVersion(), reader.tableVersion(),
+				reader.page(), reader.isLastPage()))
 		{
-			InetAddress address = entry.getKey();
-			PacketStatus status = entry.getValue();
+			// Missing changes; our next heartbeat makes the master resend them.
+			return;
+		}
 
-			if (!localIpList.contains(address))
+		while (reader.next())
+		{
+			InetAddress address = interner.intern(reader);
+			PacketStatus status = reader.status();
+
+			if (address == null || status == null)
+			{
+				continue;
+			}
+			if (IndirectProber.isProbe(status))
+			{
+				prober.handle(sender, address, status, localIpList.contains(address), System.nanoTime());
+			} else if (!localIpList.contains(address))
 			{
 				handleStatus(address, status);
 			}
 		}
+		if (reader.isMalformed())
+		{
+			metrics.decodeErrors.increment();
+		}
 	}
 
 	/**
-	 * Sends datagram packet with a byte[0] as payload.
+	 * Sends a heartbeat with no entries that tells the master which version
+	 * of its table we have applied, and, with -Dhac.load=true, our load.
 	 */
 	private void sendHeartbeat()
 	{
-		System.out.println("Sending hb");
+		reporter.report("Sending hb");
 
-		//In file the ip is formatted like xxx.xxx.xxx.xxx:8888
-		String ip = masterIp.split("\\:")[0];
-		int port = Integer.valueOf(masterIp.split("\\:")[1]);
+		failOverIfSilent();
+		InetSocketAddress target = masterTarget();
+		if (target == null)
+		{
+			return;
+		}
 
 		try
 		{
-			InetAddress inetAddress = InetAddress.getByName(ip);
-			// Set flags for heartbeat.
-			byte heartbeat = (byte) (1 << 7);
-			DatagramPacket packet = new DatagramPacket(new byte[]{0, 3, heartbeat},
-					2, inetAddress, port);
-			socket.send(packet);
+			AvailabilityPacket.begin(heartbeatBuffer, 0, 0, membershipLog.appliedFrom(target.getAddress()));
+			if (REPORT_LOAD && membershipLog.readsCompact(target.getAddress()))
+			{
+				putLoad();
+			}
+			AvailabilityPacket.finish(heartbeatBuffer, true);
+			heartbeatPacket.setData(heartbeatBuffer.array(), 0, heartbeatBuffer.limit());
+			heartbeatPacket.setSocketAddress(target);
+			long start = System.nanoTime();
+			socket.send(heartbeatPacket);
+			metrics.sendLoop.record(System.nanoTime() - start);
+			metrics.sent(heartbeatPacket.getLength());
 		} catch (IOException e)
 		{
 			e.printStackTrace();
@@ -149,42 +235,156 @@ public class Client
 	}
 
 	/**
-	 * outputs all ips
+	 * Adds our CPU load, load average and capacity to the heartbeat being
+	 * encoded. Values the JVM can't measure are sent as 0.
 	 */
-	private void outputIps()
+	private void putLoad()
 	{
-		System.out.println("----- Online -----");
-		for (InetAddress ip : onlineIpList)
+		OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		double cpu = os instanceof com.sun.management.OperatingSystemMXBean
+				? ((com.sun.management.OperatingSystemMXBean) os).getCpuLoad() : -1;
+		double loadAverage = os.getSystemLoadAverage();
+		AvailabilityPacket.putLoad(heartbeatBuffer, cpu < 0 ? 0 : (int) (cpu * 1000),
+				loadAverage < 0 ? 0 : (int) (loadAverage * 100), capacity);
+	}
+
+	/**
+	 * Sets the capacity reported on our heartbeats, which masters divide
+	 * our load by when ranking clients; 100 unless hac.load.capacity says
+	 * otherwise.
+	 *
+	 * @param capacity From 1 to 65535, higher takes more work.
+	 */
+	public void setCapacity(int capacity)
+	{
+		this.capacity = capacity;
+	}
+
+	/**
+	 * @return Membership changes, for listeners to subscribe to.
+	 */
+	public MembershipEvents events()
+	{
+		return events;
+	}
+
+	private void sendProbe(ByteBuffer buffer, InetSocketAddress target)
+	{
+		try
+		{
+			socket.send(new DatagramPacket(buffer.array(), buffer.position(), buffer.remaining(), target));
+		} catch (IOException e)
 		{
-			System.out.println(ip.getHostAddress());
+			e.printStackTrace();
 		}
-		System.out.println("----- Offline -----");
-		for (InetAddress ip : offlineIpList)
+	}
+
+	/**
+	 * @return Where a probe for address goes: its socket if it is a master
+	 * or shard we know, otherwise the client port.
+	 */
+	private InetSocketAddress peerAddress(InetAddress address)
+	{
+		PeerList masters = master != null ? master : shards;
+		for (InetSocketAddress target : masters.peers())
 		{
-			System.out.println(ip.getHostAddress());
+			if (target.getAddress().equals(address))
+			{
+				return target;
+			}
 		}
-		System.out.println("----------------");
+		return new InetSocketAddress(address, PORT_NUM);
 	}
 
 	/**
-	 * Reads in IPs from file.
-	 *
-	 * @return Array of ips in string format xxx.xxx.xxx.xxx:xxxx
+	 * @return The master, or in sharded mode the shard the ring gives us;
+	 * null if there is none.
 	 */
-	private String readMasterIp()
+	private InetSocketAddress masterTarget()
 	{
-		File file = new File("masterIp");
-		String masterIp = null;
-		try
+		if (shards == null)
+		{
+			InetSocketAddress[] masters = master.peers();
+			return masters.length == 0 ? null : masters[masterIndex % masters.length];
+		}
+		InetSocketAddress[] current = shards.peers();
+		if (ring == null || ring.shards() != current)
+		{
+			ring = new ConsistentHashRing(current);
+		}
+		int owner = selfAddress == null ? -1 : ring.owner(selfAddress);
+		return owner < 0 ? null : current[owner];
+	}
+
+	/**
+	 * Only the active master heartbeats clients, so a heartbeat from another
+	 * master in masterIp means a standby has taken over; follow it.
+	 */
+	private void followMaster(InetAddress sender, long now)
+	{
+		if (master == null)
+		{
+			return;
+		}
+		InetSocketAddress[] masters = master.peers();
+		for (int i = 0; i < masters.length; i++)
 		{
-			BufferedReader br = new BufferedReader(new FileReader(file));
-			masterIp = br.readLine();
+			if (masters[i].getAddress().equals(sender))
+			{
+				if (i != masterIndex % masters.length)
+				{
+					reporter.report("Following master " + sender.getHostAddress());
+					masterIndex = i;
+				}
+				lastMasterHeartbeat = now;
+				return;
+			}
+		}
+	}
 
-		} catch (IOException e)
+	/**
+	 * Moves on to the next master in masterIp if ours has been silent for
+	 * MASTER_TIMEOUT_SEC, wrapping around to the first.
+	 */
+	private void failOverIfSilent()
+	{
+		if (master == null)
 		{
-			e.printStackTrace();
+			return;
+		}
+		InetSocketAddress[] masters = master.peers();
+		long now = System.nanoTime();
+		if (masters.length > 1 && now - lastMasterHeartbeat > TimeUnit.SECONDS.toNanos(MASTER_TIMEOUT_SEC))
+		{
+			masterIndex = (masterIndex + 1) % masters.length;
+			lastMasterHeartbeat = now;
+			reporter.report("Master silent, failing over to " + masters[masterIndex].getAddress().getHostAddress());
 		}
-		return masterIp;
+	}
+
+	/**
+	 * @return The first address that others could reach us on, preferring
+	 * IPv4, or null if there is none.
+	 */
+	private InetAddress findSelfAddress()
+	{
+		InetAddress found = null;
+		for (InetAddress address : localIpList)
+		{
+			if (address.isLoopbackAddress() || address.isLinkLocalAddress() || address.isMulticastAddress())
+			{
+				continue;
+			}
+			if (address.getAddress().length == 4)
+			{
+				return address;
+			}
+			if (found == null)
+			{
+				found = address;
+			}
+		}
+		return found;
 	}
 
 	/**
@@ -194,34 +394,65 @@ public class Client
 	private List<InetAddress> populateLocalAddresses() throws SocketException
 	{
 		List<InetAddress> listOfAddr = new ArrayList<>();
-		Enumeration e = NetworkInterface.getNetworkInterfaces();
+		Enumeration<NetworkInterface> e = NetworkInterface.getNetworkInterfaces();
 
 		while (e.hasMoreElements())
 		{
-			NetworkInterface netInterface = (NetworkInterface) e.nextElement();
-			Enumeration ee = netInterface.getInetAddresses();
+			Enumeration<InetAddress> ee = e.nextElement().getInetAddresses();
 			while (ee.hasMoreElements())
 			{
-				listOfAddr.add((InetAddress) ee.nextElement());
+				listOfAddr.add(ee.nextElement());
 			}
 		}
 		return listOfAddr;
 	}
 
 	/**
-	 * Begins both a listener and sender thread that
-	 * listens and sends on the DatagramSocket.
+	 * @return Socket on PORT_NUM, joined to the multicast group the master
+	 * sends to if one is configured and usable.
+	 */
+	private DatagramSocket openSocket() throws SocketException
+	{
+		if (multicast != null)
+		{
+			try
+			{
+				return multicast.openSocket(PORT_NUM);
+			} catch (IOException e)
+			{
+				e.printStackTrace();
+				System.out.println("Multicast unavailable, falling back to unicast");
+				multicast = null;
+			}
+		}
+		return new DatagramSocket(PORT_NUM);
+	}
+
+	/**
+	 * Begins a listener thread and a heartbeat scheduler that
+	 * listen and send on the DatagramSocket.
 	 */
 	public void begin()
 	{
 		try
 		{
-			this.socket = new DatagramSocket(PORT_NUM);
+			this.socket = openSocket();
 			this.localIpList = populateLocalAddresses();
 		} catch (SocketException e)
 		{
 			e.printStackTrace();
 		}
+		if (shards != null)
+		{
+			selfAddress = findSelfAddress();
+			shards.watch();
+		} else
+		{
+			master.watch();
+		}
+		reporter.start("client-reporter");
+		metrics.export();
+		MembershipEndpoint.configured(membership);
 
 		// Start listener thread
 		new Thread(() ->
@@ -229,24 +460,11 @@ public class Client
 			while (true)
 			{
 				listenPacket();
-				outputIps();
 			}
 		}).start();
 
-		// Start sender thread
-		new Thread(() ->
-		{
-			Instant nextBeat = Instant.now();
-
-			while (true)
-			{
-				if (Duration.between(Instant.now(), nextBeat).isNegative())
-				{
-					int randSec = random.nextInt(30) + 1;
-					nextBeat = Instant.now().plusSeconds(randSec);
-					sendHeartbeat();
-				}
-			}
-		}).start();
+		// Start sender
+		scheduler.scheduleJittered(this::sendHeartbeat, 1, 30);
+		scheduler.start("client-scheduler");
 	}
 }
@@ -0,0 +1,316 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Team Rusty Buckets
+ * High Availability Cluster: Project 1
+ * Cameron Moberg, Eli Charleville, Evan Gauer
+ */
+
+/**
+ * Runs a cluster of P2PNodes in one JVM over a virtual network and a
+ * virtual clock, so the protocol can be measured at thousands of nodes on
+ * one machine. Runs are deterministic for a given seed: every node's tasks
+ * and every datagram delivery are events on one scheduler, run in order on
+ * one thread while the clock jumps straight to the next event.
+ *
+ * Part way through, hac.sim.failures nodes crash, and the run reports how
+ * long the survivors took to mark them offline, how often live nodes were
+ * wrongly marked offline, and how many bytes each node sent. Settings, all
+ * optional:
+ * <pre>
+ * hac.sim.nodes      Nodes in the cluster (200)
+ * hac.sim.seconds    Virtual length of the run (300)
+ * hac.sim.failures   Nodes that crash at the halfway point (nodes / 100, at least 1)
+ * hac.sim.loss       Chance each datagram is dropped (0)
+ * hac.sim.latency    Base one-way latency in ms (1)
+ * hac.sim.jitter     Extra random latency up to this many ms (1)
+ * hac.sim.partition  Fraction of nodes cut off from the rest for the second
+ *                    quarter of the run, healed before the crashes (0, none)
+ * hac.sim.seed       Seed for everything random (1)
+ * </pre>
+ * The nodes use the usual hac.* settings, so -Dhac.gossip=true simulates
+ * gossip mode. The default mode sends every peer every heartbeat, and every
+ * node alerts every peer about every node it first hears from, so its work
+ * grows with the cube of the node count at startup; thousands of nodes want
+ * gossip mode. Memory grows with the square of the node count either way,
+ * since every node holds the whole table, so give 10k nodes a large heap.
+ */
+public class ClusterSimulator
+{
+	private static int PORT_NUM = 9999;
+
+	private final int count;
+	private final double loss;
+	private final long latency;
+	private final long jitter;
+	private final Random random;
+
+	private long now;
+	private final HeartbeatScheduler scheduler;
+	private final InetSocketAddress[] addresses;
+	private final Map<InetAddress, Integer> indexes = new HashMap<>();
+	private final P2PNode[] nodes;
+	private final boolean[] alive;
+	private final int[] group;
+	private final long[] crashedAt;
+	private final long[] bytesSent;
+	// Survivors that have marked each crashed node offline, so each pair counts once.
+	private final BitSet[] detectedBy;
+	private long packetsSent;
+	private long packetsDropped;
+
+	private long[] detectionLatencies = new long[64];
+	private int detections;
+	private long falsePositives;
+	private long partitionSuspicions;
+
+	/**
+	 * @param count   Nodes in the cluster.
+	 * @param loss    Chance each datagram is dropped.
+	 * @param latency Base one-way latency in nanoseconds.
+	 * @param jitter  Extra random latency up to this many nanoseconds.
+	 * @param seed    Seed for everything random.
+	 */
+	public ClusterSimulator(int count, double loss, long latency, long jitter, long seed)
+	{
+		this.count = count;
+		this.loss = loss;
+		this.latency = latency;
+		this.jitter = jitter;
+		this.random = new Random(seed);
+		this.scheduler = new HeartbeatScheduler(() -> now, new Random(random.nextLong()));
+		this.addresses = new InetSocketAddress[count];
+		this.nodes = new P2PNode[count];
+		this.alive = new boolean[count];
+		this.group = new int[count];
+		this.crashedAt = new long[count];
+		this.bytesSent = new long[count];
+		this.detectedBy = new BitSet[count];
+
+		for (int i = 0; i < count; i++)
+		{
+			int host = i + 1;
+			try
+			{
+				InetAddress address = InetAddress.getByAddress(
+						new byte[]{10, (byte) (host >> 16), (byte) (host >> 8), (byte) host});
+				addresses[i] = new InetSocketAddress(address, PORT_NUM);
+				indexes.put(address, i);
+			} catch (UnknownHostException e)
+			{
+				throw new IllegalStateException(e);
+			}
+		}
+
+		// Every node shares the one peer array, the way every real node reads
+		// the same ips file.
+		PeerList peers = new PeerList(addresses);
+		for (int i = 0; i < count; i++)
+		{
+			int self = i;
+			nodes[i] = new P2PNode(peers, Collections.singletonList(addresses[i].getAddress()),
+					packet -> send(self, packet), scheduler, () -> now, new Random(random.nextLong()), false);
+			nodes[i].membership().addListener((address, status) -> changed(self, address, status));
+			alive[i] = true;
+			crashedAt[i] = -1;
+		}
+	}
+
+	/**
+	 * Starts every node, then runs events until the virtual clock passes
+	 * seconds. failures nodes crash at the halfway point, and if partition
+	 * is above 0 that fraction of nodes is cut off for the second quarter.
+	 */
+	public void run(int seconds, int failures, double partition)
+	{
+		long end = TimeUnit.SECONDS.toNanos(seconds);
+		for (P2PNode node : nodes)
+		{
+			node.start();
+		}
+
+		scheduler.schedule(() -> crash(failures), end / 2, TimeUnit.NANOSECONDS);
+		if (partition > 0)
+		{
+			int cut = (int) (count * partition);
+			scheduler.schedule(() -> Arrays.fill(group, 0, cut, 1), end / 4, TimeUnit.NANOSECONDS);
+			scheduler.schedule(() -> Arrays.fill(group, 0), end / 2 - 1, TimeUnit.NANOSECONDS);
+		}
+
+		while (true)
+		{
+			long wait = scheduler.nanosUntilNextDeadline();
+			if (wait == Long.MAX_VALUE || now + wait > end)
+			{
+				break;
+			}
+			now += wait;
+			scheduler.runDueTasks();
+		}
+		now = end;
+	}
+
+	private void crash(int failures)
+	{
+		int crashed = 0;
+		while (crashed < Math.min(failures, count - 1))
+		{
+			int i = random.nextInt(count);
+			if (alive[i])
+			{
+				alive[i] = false;
+				crashedAt[i] = now;
+				detectedBy[i] = new BitSet(count);
+				nodes[i].stop();
+				crashed++;
+			}
+		}
+	}
+
+	/**
+	 * Sends from node from over the virtual network. The datagram is copied,
+	 * since the node reuses its buffers, and delivered after the link's
+	 * latency unless it is lost, crosses the partition or has nowhere to go.
+	 */
+	private void send(int from, DatagramPacket packet) throws IOException
+	{
+		bytesSent[from] += packet.getLength();
+		packetsSent++;
+
+		Integer to = indexes.get(packet.getAddress());
+		if (to == null || to == from || group[to] != group[from]
+				|| (loss > 0 && random.nextDouble() < loss))
+		{
+			packetsDropped++;
+			return;
+		}
+
+		byte[] data = Arrays.copyOfRange(packet.getData(), packet.getOffset(),
+				packet.getOffset() + packet.getLength());
+		long delay = latency + (jitter > 0 ? (long) (random.nextDouble() * jitter) : 0);
+		int target = to;
+		scheduler.schedule(() -> deliver(from, target, data), delay, TimeUnit.NANOSECONDS);
+	}
+
+	private void deliver(int from, int to, byte[] data)
+	{
+		// The partition may have come up while the datagram was in flight.
+		if (alive[to] && group[to] == group[from])
+		{
+			nodes[to].handlePayload(addresses[from].getAddress(), ByteBuffer.wrap(data));
+		} else
+		{
+			packetsDropped++;
+		}
+	}
+
+	/**
+	 * Called whenever observer's table changes. Marking a crashed node
+	 * offline is a detection; marking a live one offline is a false
+	 * positive, unless the partition separates them.
+	 */
+	private void changed(int observer, InetAddress address, PacketStatus status)
+	{
+		Integer subject = indexes.get(address);
+		if (status != PacketStatus.OFFLINE || subject == null || !alive[observer])
+		{
+			return;
+		}
+
+		if (crashedAt[subject] >= 0)
+		{
+			if (detectedBy[subject].get(observer))
+			{
+				return;
+			}
+			detectedBy[subject].set(observer);
+			if (detections == detectionLatencies.length)
+			{
+				detectionLatencies = Arrays.copyOf(detectionLatencies, detections * 2);
+			}
+			detectionLatencies[detections++] = now - crashedAt[subject];
+		} else if (group[observer] != group[subject])
+		{
+			partitionSuspicions++;
+		} else
+		{
+			falsePositives++;
+		}
+	}
+
+	/**
+	 * Prints what the run measured.
+	 */
+	public void report()
+	{
+		int survivors = 0;
+		int crashed = 0;
+		for (boolean up : alive)
+		{
+			if (up)
+			{
+				survivors++;
+			} else
+			{
+				crashed++;
+			}
+		}
+		double seconds = now / 1e9;
+
+		long total = 0;
+		long most = 0;
+		for (long bytes : bytesSent)
+		{
+			total += bytes;
+			most = Math.max(most, bytes);
+		}
+
+		System.out.println("----- Simulation -----");
+		System.out.printf("%d nodes, %.0f s virtual, %d packets sent, %d dropped%n",
+				count, seconds, packetsSent, packetsDropped);
+		System.out.printf("Bytes sent per node: mean %.0f B/s, max %.0f B/s%n",
+				total / (double) count / seconds, most / seconds);
+		System.out.printf("Crashed %d; detected %d of %d (survivor, crashed) pairs%n",
+				crashed, detections, (long) survivors * crashed);
+		if (detections > 0)
+		{
+			long[] sorted = Arrays.copyOf(detectionLatencies, detections);
+			Arrays.sort(sorted);
+			System.out.printf("Detection latency: p50 %.2f s, p99 %.2f s, max %.2f s%n",
+					sorted[detections / 2] / 1e9, sorted[(int) (detections * 0.99)] / 1e9,
+					sorted[detections - 1] / 1e9);
+		}
+		double nodeHours = survivors * seconds / 3600;
+		System.out.printf("False positives: %d (%.2f per node-hour); across partition: %d%n",
+				falsePositives, falsePositives / nodeHours, partitionSuspicions);
+		System.out.println("----------------");
+	}
+
+	public static void main(String[] args)
+	{
+		int nodes = Integer.getInteger("hac.sim.nodes", 200);
+		int seconds = Integer.getInteger("hac.sim.seconds", 300);
+		int failures = Integer.getInteger("hac.sim.failures", Math.max(1, nodes / 100));
+		double loss = Double.parseDouble(System.getProperty("hac.sim.loss", "0"));
+		long latency = TimeUnit.MILLISECONDS.toNanos(Integer.getInteger("hac.sim.latency", 1));
+		long jitter = TimeUnit.MILLISECONDS.toNanos(Integer.getInteger("hac.sim.jitter", 1));
+		double partition = Double.parseDouble(System.getProperty("hac.sim.partition", "0"));
+		long seed = Long.getLong("hac.sim.seed", 1);
+
+		ClusterSimulator simulator = new ClusterSimulator(nodes, loss, latency, jitter, seed);
+		simulator.run(seconds, failures, partition);
+		simulator.report();
+	}
+}
@@ -0,0 +1,107 @@
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+
+/**
+ * Team Rusty Buckets
+ * High Availability Cluster: Project 1
+ * Cameron Moberg, Eli Charleville, Evan Gauer
+ */
+
+/**
+ * Assigns addresses to shards by consistent hashing. Each shard is placed
+ * at hac.shard.vnodes points on a ring of 64 bit hashes, and an address
+ * belongs to the shard at the first point at or after its own hash. The
+ * points only depend on the shard's address, so every node that reads the
+ * same shards file agrees on the owners, and adding or removing a shard
+ * only moves the addresses next to its points.
+ */
+public class ConsistentHashRing
+{
+	private static int VIRTUAL_NODES = Integer.getInteger("hac.shard.vnodes", 128);
+
+	private final InetSocketAddress[] shards;
+	private final long[] points;
+	private final int[] owners;
+
+	/**
+	 * @param shards Shard addresses, not copied, which must not be modified.
+	 */
+	public ConsistentHashRing(InetSocketAddress[] shards)
+	{
+		this.shards = shards;
+		int count = shards.length * VIRTUAL_NODES;
+		long[] keys = new long[count];
+		for (int shard = 0; shard < shards.length; shard++)
+		{
+			long base = hash(shards[shard].getAddress().getAddress()) * 31 + shards[shard].getPort();
+			for (int v = 0; v < VIRTUAL_NODES; v++)
+			{
+				keys[shard * VIRTUAL_NODES + v] = mix(base + v * 0x9E3779B97F4A7C15L);
+			}
+		}
+
+		// Sort points and owners together by sorting the indexes.
+		Integer[] order = new Integer[count];
+		for (int i = 0; i < count; i++)
+		{
+			order[i] = i;
+		}
+		Arrays.sort(order, (a, b) -> Long.compare(keys[a], keys[b]));
+		this.points = new long[count];
+		this.owners = new int[count];
+		for (int i = 0; i < count; i++)
+		{
+			points[i] = keys[order[i]];
+			owners[i] = order[i] / VIRTUAL_NODES;
+		}
+	}
+
+	/**
+	 * @return The shard addresses the ring was built from.
+	 */
+	public InetSocketAddress[] shards()
+	{
+		return shards;
+	}
+
+	/**
+	 * @return Index into shards of the shard that owns address, or -1 if
+	 * there are no shards.
+	 */
+	public int owner(InetAddress address)
+	{
+		if (points.length == 0)
+		{
+			return -1;
+		}
+		int i = Arrays.binarySearch(points, hash(address.getAddress()));
+		if (i < 0)
+		{
+			i = -i - 1;
+		}
+		return owners[i == points.length ? 0 : i];
+	}
+
+	private static long hash(byte[] address)
+	{
+		long h = 0;
+		for (byte b : address)
+		{
+			h = Long.rotateLeft(h, 8) ^ (b & 0xFF);
+		}
+		return mix(h);
+	}
+
+	/**
+	 * murmur3's 64 bit finalizer, so neighbouring addresses land far apart.
+	 */
+	private static long mix(long h)
+	{
+		h ^= h >>> 33;
+		h *= 0xFF51AFD7ED558CCDL;
+		h ^= h >>> 33;
+		h *= 0xC4CEB9FE1A85EC53L;
+		return h ^ (h >>> 33);
+	}
+}
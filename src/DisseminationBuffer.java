@@ -0,0 +1,145 @@
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.BiPredicate;
+
+/**
+ * Team Rusty Buckets
+ * High Availability Cluster: Project 1
+ * Cameron Moberg, Eli Charleville, Evan Gauer
+ */
+
+/**
+ * Alerts waiting to ride along on heartbeats instead of going out as
+ * datagrams of their own. Turned on with -Dhac.piggyback=true.
+ *
+ * Each alert is carried for hac.piggyback.retransmit * log2(N + 1) rounds of
+ * heartbeats, N being the number of peers, and then retired. That is
+ * enough for it to reach every node with high probability when each round
+ * only reaches a few, as in gossip mode. Where every round reaches every
+ * peer N is taken as 1, so a lost heartbeat or two is covered. Alerts sent
+ * the fewest times go first, so when a heartbeat has room for only some of
+ * them, the newest ones get it. At most hac.piggyback.capacity alerts are
+ * kept; past that the one sent the most is dropped.
+ */
+public class DisseminationBuffer
+{
+	private static boolean ENABLED = Boolean.getBoolean("hac.piggyback");
+	private static int CAPACITY = Integer.getInteger("hac.piggyback.capacity", 256);
+	private static int RETRANSMIT_MULTIPLIER = Integer.getInteger("hac.piggyback.retransmit", 3);
+
+	// Highest priority first: fewest rounds sent, then newest.
+	private final List<Update> updates = new ArrayList<>();
+
+	/**
+	 * @return A buffer, or null if the mode is off.
+	 */
+	public static DisseminationBuffer configured()
+	{
+		return ENABLED ? new DisseminationBuffer() : null;
+	}
+
+	/**
+	 * Queues an alert, replacing any older one about the same address.
+	 *
+	 * @param address     Address the alert is about.
+	 * @param status      NEW, REVIVE or FAIL.
+	 * @param clusterSize Number of peers the alert has to spread to, 1 if
+	 *                    every round reaches all of them.
+	 */
+	public synchronized void add(InetAddress address, PacketStatus status, int clusterSize)
+	{
+		Iterator<Update> it = updates.iterator();
+		while (it.hasNext())
+		{
+			if (it.next().address.equals(address))
+			{
+				it.remove();
+			}
+		}
+		if (updates.size() >= CAPACITY)
+		{
+			updates.remove(updates.size() - 1);
+		}
+		updates.add(0, new Update(address, status, retransmits(clusterSize)));
+	}
+
+	/**
+	 * Offers every queued alert to sink, highest priority first. sink
+	 * returns false for one that doesn't fit; smaller ones after it are
+	 * still offered.
+	 *
+	 * @param sink Adds an alert to a heartbeat, such as
+	 *             PagedPacketWriter.putIfRoom.
+	 * @return Number of alerts sink took.
+	 */
+	public synchronized int fill(BiPredicate<InetAddress, PacketStatus> sink)
+	{
+		int taken = 0;
+		for (Update update : updates)
+		{
+			if (sink.test(update.address, update.status))
+			{
+				update.sent = true;
+				taken++;
+			}
+		}
+		return taken;
+	}
+
+	/**
+	 * Ends a round of heartbeats: counts it for every alert that went out in
+	 * it, however many peers it reached, and retires those that have been
+	 * sent often enough.
+	 */
+	public synchronized void endRound()
+	{
+		Iterator<Update> it = updates.iterator();
+		while (it.hasNext())
+		{
+			Update update = it.next();
+			if (update.sent)
+			{
+				update.sent = false;
+				if (++update.rounds >= update.limit)
+				{
+					it.remove();
+				}
+			}
+		}
+		// Stable, so newer stays ahead of older among equals.
+		updates.sort(Comparator.comparingInt(update -> update.rounds));
+	}
+
+	public synchronized int size()
+	{
+		return updates.size();
+	}
+
+	/**
+	 * @return Rounds an alert is carried for in a cluster of n peers.
+	 */
+	static int retransmits(int n)
+	{
+		int log = 32 - Integer.numberOfLeadingZeros(Math.max(n, 1));
+		return Math.max(1, RETRANSMIT_MULTIPLIER * log);
+	}
+
+	private static class Update
+	{
+		private final InetAddress address;
+		private final PacketStatus status;
+		private final int limit;
+		private int rounds;
+		private boolean sent;
+
+		private Update(InetAddress address, PacketStatus status, int limit)
+		{
+			this.address = address;
+			this.status = status;
+			this.limit = limit;
+		}
+	}
+}
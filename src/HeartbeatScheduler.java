@@ -0,0 +1,222 @@
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Team Rusty Buckets
+ * High Availability Cluster: Project 1
+ * Cameron Moberg, Eli Charleville, Evan Gauer
+ */
+
+/**
+ * Deadline ordered timer shared by the Server, Client and P2PNode. Tasks
+ * run when their deadline passes and the scheduler thread parks until the
+ * next deadline in between, so an idle node costs no CPU.
+ */
+public class HeartbeatScheduler
+{
+	private final PriorityQueue<Task> queue = new PriorityQueue<>();
+	private final LongSupplier clock;
+	private final Random random;
+	private long sequence;
+
+	public HeartbeatScheduler()
+	{
+		this(System::nanoTime, new Random());
+	}
+
+	/**
+	 * Scheduler on a clock of our choosing, such as the simulator's virtual
+	 * one. Such a scheduler is driven with runDueTasks rather than start.
+	 *
+	 * @param clock  Source of the current time in nanoseconds.
+	 * @param random Source of heartbeat jitter.
+	 */
+	public HeartbeatScheduler(LongSupplier clock, Random random)
+	{
+		this.clock = clock;
+		this.random = random;
+	}
+
+	/**
+	 * Runs task once after the given delay.
+	 *
+	 * @param task  Work to run.
+	 * @param delay Delay before running.
+	 * @param unit  Unit of delay.
+	 * @return Handle that can be used to cancel the task.
+	 */
+	public Task schedule(Runnable task, long delay, TimeUnit unit)
+	{
+		return enqueue(new Task(task, 0, 0), clock.getAsLong() + unit.toNanos(delay));
+	}
+
+	/**
+	 * Runs task now and then again every period.
+	 *
+	 * @param task   Work to run.
+	 * @param period Time between runs.
+	 * @param unit   Unit of period.
+	 * @return Handle that can be used to cancel the task.
+	 */
+	public Task scheduleRepeating(Runnable task, long period, TimeUnit unit)
+	{
+		return enqueue(new Task(task, unit.toNanos(period), 0), clock.getAsLong());
+	}
+
+	/**
+	 * Runs task now and then again after a random number of seconds between
+	 * minSec and maxSec (inclusive), chosen fresh before every run.
+	 *
+	 * @param task   Work to run.
+	 * @param minSec Smallest delay between runs in seconds.
+	 * @param maxSec Largest delay between runs in seconds.
+	 * @return Handle that can be used to cancel the task.
+	 */
+	public Task scheduleJittered(Runnable task, int minSec, int maxSec)
+	{
+		return enqueue(new Task(task, TimeUnit.SECONDS.toNanos(minSec), maxSec - minSec),
+				clock.getAsLong());
+	}
+
+	/**
+	 * Runs every task whose deadline has passed. Repeating tasks are put back
+	 * in the queue with their next deadline before they run.
+	 */
+	public void runDueTasks()
+	{
+		Task task;
+		while ((task = pollDue(clock.getAsLong())) != null)
+		{
+			try
+			{
+				task.runnable.run();
+			} catch (RuntimeException e)
+			{
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * @return Nanoseconds until the earliest deadline, 0 if one is already
+	 * due, or Long.MAX_VALUE if nothing is scheduled.
+	 */
+	public synchronized long nanosUntilNextDeadline()
+	{
+		Task head = queue.peek();
+		if (head == null)
+		{
+			return Long.MAX_VALUE;
+		}
+		return Math.max(0, head.deadline - clock.getAsLong());
+	}
+
+	/**
+	 * Starts a thread that runs tasks at their deadlines and waits in between.
+	 *
+	 * @param name Name of the thread.
+	 */
+	public void start(String name)
+	{
+		new Thread(() ->
+		{
+			while (true)
+			{
+				runDueTasks();
+				try
+				{
+					awaitNextDeadline();
+				} catch (InterruptedException e)
+				{
+					return;
+				}
+			}
+		}, name).start();
+	}
+
+	private synchronized void awaitNextDeadline() throws InterruptedException
+	{
+		long nanos = nanosUntilNextDeadline();
+		if (nanos > 0)
+		{
+			TimeUnit.NANOSECONDS.timedWait(this, nanos);
+		}
+	}
+
+	private synchronized Task enqueue(Task task, long deadline)
+	{
+		task.deadline = deadline;
+		task.seq = sequence++;
+		queue.add(task);
+		if (queue.peek() == task)
+		{
+			notifyAll();
+		}
+		return task;
+	}
+
+	private synchronized Task pollDue(long now)
+	{
+		Task head = queue.peek();
+		while (head != null && head.cancelled)
+		{
+			queue.poll();
+			head = queue.peek();
+		}
+		if (head == null || head.deadline - now > 0)
+		{
+			return null;
+		}
+		queue.poll();
+
+		if (head.period > 0)
+		{
+			long period = head.period;
+			if (head.jitterSec > 0)
+			{
+				period += TimeUnit.SECONDS.toNanos(random.nextInt(head.jitterSec + 1));
+			}
+			head.deadline = now + period;
+			head.seq = sequence++;
+			queue.add(head);
+		}
+		return head;
+	}
+
+	/**
+	 * A scheduled unit of work. Ordered by deadline, then by insertion.
+	 */
+	public static class Task implements Comparable<Task>
+	{
+		private final Runnable runnable;
+		private final long period;
+		private final int jitterSec;
+		private long deadline;
+		private long seq;
+		private volatile boolean cancelled;
+
+		private Task(Runnable runnable, long period, int jitterSec)
+		{
+			this.runnable = runnable;
+			this.period = period;
+			this.jitterSec = jitterSec;
+		}
+
+		/**
+		 * Stops the task from running again.
+		 */
+		public void cancel()
+		{
+			this.cancelled = true;
+		}
+
+		@Override
+		public int compareTo(Task other)
+		{
+			int cmp = Long.compare(deadline - other.deadline, 0);
+			return cmp != 0 ? cmp : Long.compare(seq, other.seq);
+		}
+	}
+}
@@ -0,0 +1,169 @@
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Team Rusty Buckets
+ * High Availability Cluster: Project 1
+ * Cameron Moberg, Eli Charleville, Evan Gauer
+ */
+
+/**
+ * Latency histogram with one bucket per power of two nanoseconds. Each
+ * bucket is a LongAdder, so threads recording at once update separate
+ * cells instead of fighting over one, and recording allocates nothing once
+ * the adders have spread out. Percentiles are only as exact as the bucket,
+ * within a factor of two, which is plenty for telling milliseconds from
+ * seconds.
+ */
+public class Histogram
+{
+	private static final int BUCKETS = 64;
+
+	private final LongAdder[] buckets = new LongAdder[BUCKETS];
+	private final LongAdder sum = new LongAdder();
+	private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+	public Histogram()
+	{
+		for (int i = 0; i < BUCKETS; i++)
+		{
+			buckets[i] = new LongAdder();
+		}
+	}
+
+	/**
+	 * @param nanos Value to record; negative values count as 0.
+	 */
+	public void record(long nanos)
+	{
+		long value = Math.max(0, nanos);
+		buckets[bucket(value)].increment();
+		sum.add(value);
+		max.accumulate(value);
+	}
+
+	/**
+	 * @return Index of the bucket holding values from 2^i up to 2^(i + 1),
+	 * with 0 and 1 both in bucket 0.
+	 */
+	private static int bucket(long value)
+	{
+		return value == 0 ? 0 : 63 - Long.numberOfLeadingZeros(value);
+	}
+
+	/**
+	 * @param i Bucket index.
+	 * @return Largest value bucket i holds, plus one.
+	 */
+	public static long upperBound(int i)
+	{
+		return i >= 62 ? Long.MAX_VALUE : 1L << (i + 1);
+	}
+
+	/**
+	 * @return Values recorded into each bucket, read one at a time, so
+	 * records made while this runs may or may not be counted.
+	 */
+	public long[] counts()
+	{
+		long[] counts = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++)
+		{
+			counts[i] = buckets[i].sum();
+		}
+		return counts;
+	}
+
+	public long sum()
+	{
+		return sum.sum();
+	}
+
+	public long max()
+	{
+		return max.get();
+	}
+
+	/**
+	 * @return Values recorded and their spread, for JMX.
+	 */
+	public Summary summary()
+	{
+		long[] counts = counts();
+		long count = 0;
+		for (long c : counts)
+		{
+			count += c;
+		}
+		return new Summary(count, count == 0 ? 0 : sum() / count,
+				percentile(counts, count, 0.5), percentile(counts, count, 0.99), max());
+	}
+
+	private static long percentile(long[] counts, long count, double quantile)
+	{
+		long rank = (long) Math.ceil(count * quantile);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++)
+		{
+			seen += counts[i];
+			if (seen >= rank && seen > 0)
+			{
+				return upperBound(i);
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Point in time view of a histogram, in milliseconds. JMX clients show
+	 * it as a composite of its getters.
+	 */
+	public static class Summary
+	{
+		private final long count;
+		private final long mean;
+		private final long p50;
+		private final long p99;
+		private final long max;
+
+		private Summary(long count, long mean, long p50, long p99, long max)
+		{
+			this.count = count;
+			this.mean = mean;
+			this.p50 = p50;
+			this.p99 = p99;
+			this.max = max;
+		}
+
+		public long getCount()
+		{
+			return count;
+		}
+
+		public double getMeanMillis()
+		{
+			return mean / 1e6;
+		}
+
+		/**
+		 * @return Upper bound of the bucket holding the median.
+		 */
+		public double getP50Millis()
+		{
+			return p50 / 1e6;
+		}
+
+		/**
+		 * @return Upper bound of the bucket holding the 99th percentile.
+		 */
+		public double getP99Millis()
+		{
+			return p99 / 1e6;
+		}
+
+		public double getMaxMillis()
+		{
+			return max / 1e6;
+		}
+	}
+}
@@ -0,0 +1,284 @@
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Team Rusty Buckets
+ * High Availability Cluster: Project 1
+ * Cameron Moberg, Eli Charleville, Evan Gauer
+ */
+
+/**
+ * SWIM style indirect probing, so a node whose heartbeats stop reaching us
+ * over one bad link isn't failed while the rest of the cluster still hears
+ * it. Instead of failing it straight away we suspect it: we ping it
+ * ourselves and ask hac.probe.k (3) other members to ping it for us, and
+ * only fail it if no ack comes back within hac.probe.timeout milliseconds
+ * (3000). hac.probe.k=0 fails nodes straight away, as before; probes from
+ * others are still answered.
+ *
+ * Gossip rounds also ping their probe target directly with ping, and
+ * suspect it if no ack comes within hac.probe.ack milliseconds (500).
+ *
+ * Probes are single entry packets: (target, PING_REQ) asks the receiver to
+ * probe target, (target, PING) asks target to answer, and (target, ACK) is
+ * the answer, sent back to the pinger and relayed by it to whoever asked.
+ * Callers only suspect, ping and ask nodes that have said they answer
+ * probes; older nodes fail on the codes.
+ */
+public class IndirectProber
+{
+	private static int PROBERS = Integer.getInteger("hac.probe.k", 3);
+	private static long TIMEOUT = TimeUnit.MILLISECONDS.toNanos(Integer.getInteger("hac.probe.timeout", 3000));
+	private static long ACK_TIMEOUT = TimeUnit.MILLISECONDS.toNanos(Integer.getInteger("hac.probe.ack", 500));
+
+	private final BiConsumer<ByteBuffer, InetSocketAddress> sender;
+	private final Function<InetAddress, InetSocketAddress> resolver;
+	private final Consumer<InetAddress> acked;
+	private final Random random;
+	private final ByteBuffer buffer = ByteBuffer.allocate(AvailabilityPacket.MAX_PACKET_SIZE);
+	// Nodes we pinged directly, and when their ack is due.
+	private final Map<InetAddress, Long> pinged = new HashMap<>();
+	// Nodes we suspect, and when they fail unless they answer.
+	private final Map<InetAddress, Long> suspects = new HashMap<>();
+	// Nodes we are pinging for others, and who asked.
+	private final Map<InetAddress, Relay> relays = new HashMap<>();
+
+	/**
+	 * @param sender   Sends a packet, between position and limit, to a
+	 *                 node; the buffer is reused once it returns.
+	 * @param resolver Where to send to a node, or null if it isn't known.
+	 * @param acked    Told, once this prober's lock is released, of a
+	 *                 suspect that answered, so it may take other locks;
+	 *                 null if suspect is never called.
+	 * @param random   Picks the members asked to probe.
+	 */
+	public IndirectProber(BiConsumer<ByteBuffer, InetSocketAddress> sender,
+			Function<InetAddress, InetSocketAddress> resolver, Consumer<InetAddress> acked, Random random)
+	{
+		this.sender = sender;
+		this.resolver = resolver;
+		this.acked = acked;
+		this.random = random;
+	}
+
+	/**
+	 * @return Whether nodes are to be suspected before they are failed.
+	 */
+	public static boolean enabled()
+	{
+		return PROBERS > 0;
+	}
+
+	/**
+	 * Pings target directly and waits for its ack, as a gossip round does
+	 * for its probe target.
+	 *
+	 * @param target Node to ping.
+	 * @param now    Current time in nanoseconds.
+	 * @return When to suspect target if it hasn't answered.
+	 */
+	public synchronized long ping(InetAddress target, long now)
+	{
+		long due = now + ACK_TIMEOUT;
+		pinged.put(target, due);
+		send(target, PacketStatus.PING, target);
+		return due;
+	}
+
+	/**
+	 * Starts suspecting target, unless we already do: pings it, and asks up
+	 * to hac.probe.k random members to ping it too.
+	 *
+	 * @param target  Node whose heartbeats have stopped.
+	 * @param members Nodes that may be asked.
+	 * @param usable  Which of members to ask, such as those online.
+	 * @param now     Current time in nanoseconds.
+	 * @return When target should be failed if it hasn't answered.
+	 */
+	public synchronized long suspect(InetAddress target, InetSocketAddress[] members, Predicate<InetAddress> usable,
+			long now)
+	{
+		Long deadline = suspects.get(target);
+		if (deadline != null)
+		{
+			return deadline;
+		}
+		deadline = now + TIMEOUT;
+		pinged.remove(target);
+		suspects.put(target, deadline);
+		send(target, PacketStatus.PING, target);
+
+		// Random start, then walk on, to pick distinct members in one pass.
+		int n = members.length;
+		int asked = 0;
+		int start = n == 0 ? 0 : random.nextInt(n);
+		for (int i = 0; i < n && asked < PROBERS; i++)
+		{
+			InetSocketAddress member = members[(start + i) % n];
+			if (!member.getAddress().equals(target) && usable.test(member.getAddress()))
+			{
+				send(target, PacketStatus.PING_REQ, member);
+				asked++;
+			}
+		}
+		return deadline;
+	}
+
+	/**
+	 * @return Whether status is one of the probe codes, which handle takes.
+	 */
+	public static boolean isProbe(PacketStatus status)
+	{
+		return status == PacketStatus.PING_REQ || status == PacketStatus.PING || status == PacketStatus.ACK;
+	}
+
+	public synchronized boolean isSuspect(InetAddress address)
+	{
+		return suspects.containsKey(address);
+	}
+
+	/**
+	 * @return Whether address was pinged with ping and hasn't answered yet.
+	 */
+	public synchronized boolean isPinged(InetAddress address)
+	{
+		return pinged.containsKey(address);
+	}
+
+	/**
+	 * Stops pinging and suspecting address, such as when its heartbeats come
+	 * back.
+	 */
+	public synchronized void clear(InetAddress address)
+	{
+		pinged.remove(address);
+		suspects.remove(address);
+	}
+
+	/**
+	 * Handles one entry of a received packet if it is a probe.
+	 *
+	 * @param sender  Node the packet came from.
+	 * @param address Address of the entry.
+	 * @param status  Status of the entry.
+	 * @param local   Whether address is one of ours.
+	 * @param now     Current time in nanoseconds.
+	 * @return false if the entry isn't a probe, see isProbe, and should be
+	 * handled as a status.
+	 */
+	public boolean handle(InetAddress sender, InetAddress address, PacketStatus status, boolean local, long now)
+	{
+		switch (status)
+		{
+			case PING_REQ:
+				relay(sender, address, now);
+				return true;
+			case PING:
+				if (local)
+				{
+					answer(sender, address);
+				}
+				return true;
+			case ACK:
+				if (ack(address))
+				{
+					acked.accept(address);
+				}
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	/**
+	 * Pings address for sender, unless we already are for someone.
+	 */
+	private synchronized void relay(InetAddress sender, InetAddress address, long now)
+	{
+		expireRelays(now);
+		Relay relay = relays.get(address);
+		if (relay == null)
+		{
+			relay = new Relay();
+			relays.put(address, relay);
+			send(address, PacketStatus.PING, address);
+		}
+		relay.expires = now + TIMEOUT;
+		if (!relay.requesters.contains(sender))
+		{
+			relay.requesters.add(sender);
+		}
+	}
+
+	private synchronized void answer(InetAddress sender, InetAddress address)
+	{
+		// Answered with the address we were pinged as.
+		send(address, PacketStatus.ACK, sender);
+	}
+
+	/**
+	 * Passes an ack for address on to whoever asked us to ping it.
+	 *
+	 * @return Whether we were waiting on it ourselves.
+	 */
+	private synchronized boolean ack(InetAddress address)
+	{
+		Relay asked = relays.remove(address);
+		if (asked != null)
+		{
+			for (InetAddress requester : asked.requesters)
+			{
+				send(address, PacketStatus.ACK, requester);
+			}
+		}
+		boolean waiting = pinged.remove(address) != null;
+		return suspects.remove(address) != null || waiting;
+	}
+
+	private void expireRelays(long now)
+	{
+		Iterator<Relay> it = relays.values().iterator();
+		while (it.hasNext())
+		{
+			if (it.next().expires - now < 0)
+			{
+				it.remove();
+			}
+		}
+	}
+
+	private void send(InetAddress address, PacketStatus status, InetAddress to)
+	{
+		InetSocketAddress target = resolver.apply(to);
+		if (target != null)
+		{
+			send(address, status, target);
+		}
+	}
+
+	private void send(InetAddress address, PacketStatus status, InetSocketAddress to)
+	{
+		AvailabilityPacket.begin(buffer);
+		AvailabilityPacket.putEntry(buffer, address, status);
+		AvailabilityPacket.finish(buffer, false);
+		sender.accept(buffer, to);
+	}
+
+	private static class Relay
+	{
+		private long expires;
+		private final List<InetAddress> requesters = new ArrayList<>();
+	}
+}
@@ -0,0 +1,160 @@
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Team Rusty Buckets
+ * High Availability Cluster: Project 1
+ * Cameron Moberg, Eli Charleville, Evan Gauer
+ */
+
+/**
+ * Ranks online nodes by the load they report on their heartbeats, so work
+ * can be placed on the least loaded ones without polling them separately.
+ * A node's cost is its CPU load in thousandths plus its load average in
+ * hundredths, scaled by 100 / capacity, and the lowest cost ranks first. A
+ * node that sends no capacity counts as capacity 100.
+ *
+ * Reports are taken on the thread that receives heartbeats. refresh, which
+ * Server runs every hac.load.refresh milliseconds (100) on that same
+ * thread, sorts them into a ranking that queries read from any thread
+ * without locking. A query only skips nodes that have gone offline since,
+ * so it costs a volatile read and a membership lookup or two.
+ */
+public class LoadBalancer
+{
+	private static final int DEFAULT_CAPACITY = 100;
+
+	private final MembershipTable membership;
+	private final Map<InetAddress, Load> loads = new HashMap<>();
+	private boolean changed;
+	private volatile InetAddress[] ranking = new InetAddress[0];
+
+	/**
+	 * @param membership Table of which nodes are online.
+	 */
+	public LoadBalancer(MembershipTable membership)
+	{
+		this.membership = membership;
+	}
+
+	/**
+	 * Records the load node last reported.
+	 *
+	 * @param node     Address the heartbeat came from.
+	 * @param cpuLoad  CPU in use, in thousandths.
+	 * @param runQueue Load average, in hundredths.
+	 * @param capacity Application defined capacity, 0 if none.
+	 */
+	public void report(InetAddress node, int cpuLoad, int runQueue, int capacity)
+	{
+		Load load = loads.get(node);
+		if (load == null)
+		{
+			load = new Load();
+			loads.put(node, load);
+		}
+		load.cost = (cpuLoad + runQueue) * 100L / (capacity == 0 ? DEFAULT_CAPACITY : capacity);
+		changed = true;
+	}
+
+	/**
+	 * Sorts the online nodes that have reported into a new ranking, if any
+	 * report came in since the last refresh. Nodes no longer online are
+	 * forgotten; they report again when they come back.
+	 */
+	public void refresh()
+	{
+		if (!changed)
+		{
+			return;
+		}
+		changed = false;
+
+		List<InetAddress> nodes = new ArrayList<>(loads.size());
+		Iterator<InetAddress> it = loads.keySet().iterator();
+		while (it.hasNext())
+		{
+			InetAddress node = it.next();
+			if (membership.isOnline(node))
+			{
+				nodes.add(node);
+			} else
+			{
+				it.remove();
+			}
+		}
+		// Cost in the high bits and index in the low bits sorts both together.
+		long[] keys = new long[nodes.size()];
+		for (int i = 0; i < keys.length; i++)
+		{
+			keys[i] = Math.min(loads.get(nodes.get(i)).cost, Integer.MAX_VALUE) << 32 | i;
+		}
+		Arrays.sort(keys);
+		InetAddress[] ranked = new InetAddress[keys.length];
+		for (int i = 0; i < keys.length; i++)
+		{
+			ranked[i] = nodes.get((int) keys[i]);
+		}
+		ranking = ranked;
+	}
+
+	/**
+	 * @return The online node with the lowest cost, or null if no online
+	 * node has reported its load.
+	 */
+	public InetAddress leastLoaded()
+	{
+		for (InetAddress node : ranking)
+		{
+			if (membership.isOnline(node))
+			{
+				return node;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Fills into with up to into.length online nodes, lowest cost first,
+	 * without allocating.
+	 *
+	 * @param into Array to fill.
+	 * @return Number of nodes put in into.
+	 */
+	public int leastLoaded(InetAddress[] into)
+	{
+		int count = 0;
+		for (InetAddress node : ranking)
+		{
+			if (count == into.length)
+			{
+				break;
+			}
+			if (membership.isOnline(node))
+			{
+				into[count++] = node;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * @param k Most nodes wanted.
+	 * @return Up to k online nodes, lowest cost first.
+	 */
+	public List<InetAddress> leastLoaded(int k)
+	{
+		InetAddress[] into = new InetAddress[k];
+		return Arrays.asList(into).subList(0, leastLoaded(into));
+	}
+
+	private static class Load
+	{
+		private long cost;
+	}
+}
@@ -0,0 +1,181 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Team Rusty Buckets
+ * High Availability Cluster: Project 1
+ * Cameron Moberg, Eli Charleville, Evan Gauer
+ */
+
+/**
+ * Lets other processes on the machine ask which members are online. With
+ * -Dhac.query.port, a datagram sent to 127.0.0.1:(port) is answered with
+ * the membership view; hac.query.host binds somewhere other than loopback.
+ * A query of "online", or an empty one, gets the online addresses, one per
+ * line, and "all" gets every known address followed by its status. Each
+ * answer starts with a line "hac <version> <page> <pages>"; big tables
+ * take several datagrams, every one of them starting with that line.
+ *
+ * Answers are serialized once per change of the table, by the first query
+ * to see the new version, and kept as an immutable snapshot of pages ready
+ * to send. Every other query just sends those bytes, on the endpoint's own
+ * thread, taking no lock the heartbeat path takes; only the rebuild walks
+ * the table.
+ */
+public class MembershipEndpoint
+{
+	private static int PORT = Integer.getInteger("hac.query.port", 0);
+	private static String HOST = System.getProperty("hac.query.host", "127.0.0.1");
+	// Under the 65507 byte datagram limit, with room for the header line.
+	private static int PAGE_SIZE = 60000;
+
+	private final MembershipTable membership;
+	private final DatagramSocket socket;
+	// Only the endpoint's thread reads or replaces it.
+	private Snapshot snapshot = new Snapshot(-1, new byte[0][], new byte[0][]);
+
+	private MembershipEndpoint(MembershipTable membership, DatagramSocket socket)
+	{
+		this.membership = membership;
+		this.socket = socket;
+	}
+
+	/**
+	 * Starts the endpoint on a daemon thread if hac.query.port is set.
+	 * Failures are printed and otherwise ignored, as for metrics.
+	 *
+	 * @param membership Table to answer from.
+	 * @return The endpoint, or null if no port is set or it couldn't start.
+	 */
+	public static MembershipEndpoint configured(MembershipTable membership)
+	{
+		if (PORT <= 0)
+		{
+			return null;
+		}
+		MembershipEndpoint endpoint;
+		try
+		{
+			endpoint = new MembershipEndpoint(membership,
+					new DatagramSocket(new InetSocketAddress(InetAddress.getByName(HOST), PORT)));
+		} catch (IOException e)
+		{
+			e.printStackTrace();
+			return null;
+		}
+		Thread thread = new Thread(endpoint::run, "membership-endpoint");
+		thread.setDaemon(true);
+		thread.start();
+		return endpoint;
+	}
+
+	private void run()
+	{
+		byte[] query = new byte[16];
+		DatagramPacket request = new DatagramPacket(query, query.length);
+		DatagramPacket reply = new DatagramPacket(query, 0);
+		while (true)
+		{
+			try
+			{
+				request.setLength(query.length);
+				socket.receive(request);
+				String what = new String(query, 0, request.getLength(), StandardCharsets.US_ASCII).trim();
+				byte[][] pages;
+				if (what.isEmpty() || what.equals("online"))
+				{
+					pages = current().online;
+				} else if (what.equals("all"))
+				{
+					pages = current().all;
+				} else
+				{
+					continue;
+				}
+				reply.setSocketAddress(request.getSocketAddress());
+				for (byte[] page : pages)
+				{
+					reply.setData(page);
+					socket.send(reply);
+				}
+			} catch (IOException e)
+			{
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * @return The snapshot of the table as it is now, rebuilt first if the
+	 * table has changed since the last one.
+	 */
+	private Snapshot current()
+	{
+		int version = membership.version();
+		if (snapshot.version != version)
+		{
+			// A change racing the walk bumps the version past this one, so
+			// the next query rebuilds.
+			List<String> all = new ArrayList<>();
+			List<String> online = new ArrayList<>();
+			membership.forEach((address, status) ->
+			{
+				all.add(address.getHostAddress() + " " + status + "\n");
+				if (status == PacketStatus.ONLINE)
+				{
+					online.add(address.getHostAddress() + "\n");
+				}
+			});
+			snapshot = new Snapshot(version, paginate(version, all), paginate(version, online));
+		}
+		return snapshot;
+	}
+
+	/**
+	 * @return lines split into pages of at most PAGE_SIZE bytes, each headed
+	 * by its header line; at least one, so an empty view still answers.
+	 */
+	private static byte[][] paginate(int version, List<String> lines)
+	{
+		List<StringBuilder> bodies = new ArrayList<>();
+		StringBuilder body = new StringBuilder();
+		bodies.add(body);
+		for (String line : lines)
+		{
+			// Addresses are ASCII, so chars are bytes.
+			if (body.length() + line.length() > PAGE_SIZE)
+			{
+				body = new StringBuilder();
+				bodies.add(body);
+			}
+			body.append(line);
+		}
+		byte[][] pages = new byte[bodies.size()][];
+		for (int i = 0; i < pages.length; i++)
+		{
+			String header = "hac " + version + " " + i + " " + pages.length + "\n";
+			pages[i] = (header + bodies.get(i)).getBytes(StandardCharsets.US_ASCII);
+		}
+		return pages;
+	}
+
+	private static class Snapshot
+	{
+		private final int version;
+		private final byte[][] all;
+		private final byte[][] online;
+
+		private Snapshot(int version, byte[][] all, byte[][] online)
+		{
+			this.version = version;
+			this.all = all;
+			this.online = online;
+		}
+	}
+}
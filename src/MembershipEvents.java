@@ -0,0 +1,229 @@
+import java.lang.invoke.VarHandle;
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiConsumer;
+
+/**
+ * Team Rusty Buckets
+ * High Availability Cluster: Project 1
+ * Cameron Moberg, Eli Charleville, Evan Gauer
+ */
+
+/**
+ * Membership changes for in-process listeners, so services can react to a
+ * node failing without scraping the status output. Each event is the
+ * address and the status that caused the change: NEW or REVIVE for an
+ * alert, ONLINE for a node heard from directly or listed online, FAIL for a
+ * node we failed or were told failed, and OFFLINE for one listed offline.
+ *
+ * Events go into a ring of hac.events.capacity (1024) slots allocated up
+ * front. The node's threads publish under a lock that listeners never
+ * take, so publishing is one slot write and costs nothing when nobody
+ * listens. Each listener runs on its own daemon thread with its own
+ * position in the ring. A listener that falls a whole ring behind is
+ * never waited for: it skips ahead to the oldest event still held, and
+ * the events it lost are counted.
+ */
+public class MembershipEvents
+{
+	private static int CAPACITY = Integer.getInteger("hac.events.capacity", 1024);
+	// Longest a listener sleeps between checks should a wake-up be missed.
+	private static long PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+	private final int mask;
+	private final InetAddress[] addresses;
+	private final PacketStatus[] statuses;
+	// Sequence of the event in each slot, -1 while it is being overwritten.
+	private final AtomicLongArray sequences;
+	// Sequence of the last event published.
+	private volatile long cursor = -1;
+	private volatile Subscription[] subscriptions = new Subscription[0];
+
+	public MembershipEvents()
+	{
+		this(CAPACITY);
+	}
+
+	/**
+	 * @param capacity Events held for listeners that fall behind, rounded up
+	 *                 to a power of two.
+	 */
+	public MembershipEvents(int capacity)
+	{
+		int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+		this.mask = size - 1;
+		this.addresses = new InetAddress[size];
+		this.statuses = new PacketStatus[size];
+		this.sequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++)
+		{
+			sequences.set(i, -1);
+		}
+	}
+
+	/**
+	 * Publishes a change. Never blocks on listeners.
+	 *
+	 * @param address Address whose status changed.
+	 * @param status  Status that caused the change.
+	 */
+	public synchronized void publish(InetAddress address, PacketStatus status)
+	{
+		Subscription[] subs = subscriptions;
+		if (subs.length == 0)
+		{
+			return;
+		}
+		long sequence = cursor + 1;
+		int slot = (int) sequence & mask;
+		sequences.set(slot, -1);
+		VarHandle.storeStoreFence();
+		addresses[slot] = address;
+		statuses[slot] = status;
+		sequences.set(slot, sequence);
+		cursor = sequence;
+
+		for (Subscription subscription : subs)
+		{
+			subscription.wake();
+		}
+	}
+
+	/**
+	 * Starts delivering the changes published from now on to listener, in
+	 * order, on a daemon thread of its own.
+	 *
+	 * @param name     Name for the thread.
+	 * @param listener Told of each change; may take as long as it likes.
+	 * @return The subscription, to close when done.
+	 */
+	public synchronized Subscription subscribe(String name, BiConsumer<InetAddress, PacketStatus> listener)
+	{
+		Subscription subscription = new Subscription(listener, cursor + 1);
+		Subscription[] subs = Arrays.copyOf(subscriptions, subscriptions.length + 1);
+		subs[subs.length - 1] = subscription;
+		subscriptions = subs;
+
+		subscription.thread = new Thread(subscription::run, name);
+		subscription.thread.setDaemon(true);
+		subscription.thread.start();
+		return subscription;
+	}
+
+	private synchronized void unsubscribe(Subscription subscription)
+	{
+		Subscription[] subs = new Subscription[subscriptions.length];
+		int count = 0;
+		for (Subscription s : subscriptions)
+		{
+			if (s != subscription)
+			{
+				subs[count++] = s;
+			}
+		}
+		subscriptions = Arrays.copyOf(subs, count);
+	}
+
+	public class Subscription
+	{
+		private final BiConsumer<InetAddress, PacketStatus> listener;
+		private final AtomicLong missed = new AtomicLong();
+		private Thread thread;
+		// Sequence of the next event to deliver; only the thread touches it.
+		private long next;
+		private volatile boolean waiting;
+		private volatile boolean closed;
+
+		private Subscription(BiConsumer<InetAddress, PacketStatus> listener, long next)
+		{
+			this.listener = listener;
+			this.next = next;
+		}
+
+		/**
+		 * @return Events this listener lost by falling a whole ring behind.
+		 */
+		public long missed()
+		{
+			return missed.get();
+		}
+
+		/**
+		 * Stops delivering; the thread ends after the event it is on.
+		 */
+		public void close()
+		{
+			closed = true;
+			unsubscribe(this);
+			LockSupport.unpark(thread);
+		}
+
+		private void wake()
+		{
+			if (waiting)
+			{
+				LockSupport.unpark(thread);
+			}
+		}
+
+		private void run()
+		{
+			while (!closed)
+			{
+				if (!deliver())
+				{
+					waiting = true;
+					if (cursor < next && !closed)
+					{
+						LockSupport.parkNanos(this, PARK_NANOS);
+					}
+					waiting = false;
+				}
+			}
+		}
+
+		/**
+		 * Delivers every event published so far.
+		 *
+		 * @return false if there were none.
+		 */
+		private boolean deliver()
+		{
+			long published = cursor;
+			if (next > published)
+			{
+				return false;
+			}
+			while (next <= published && !closed)
+			{
+				int slot = (int) next & mask;
+				long before = sequences.get(slot);
+				InetAddress address = addresses[slot];
+				PacketStatus status = statuses[slot];
+				VarHandle.loadLoadFence();
+				if (before != next || sequences.get(slot) != next)
+				{
+					// Overwritten before we got to it; resume at the oldest held.
+					long resume = Math.max(next + 1, cursor - mask);
+					missed.addAndGet(resume - next);
+					next = resume;
+					published = cursor;
+					continue;
+				}
+				next++;
+				try
+				{
+					listener.accept(address, status);
+				} catch (RuntimeException e)
+				{
+					e.printStackTrace();
+				}
+			}
+			return true;
+		}
+	}
+}
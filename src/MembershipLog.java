@@ -0,0 +1,263 @@
+import java.net.InetAddress;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Team Rusty Buckets
+ * High Availability Cluster: Project 1
+ * Cameron Moberg, Eli Charleville, Evan Gauer
+ */
+
+/**
+ * Versions a node's membership table so heartbeats only carry what changed.
+ * Every status change bumps the table version and is kept in a ring of the
+ * most recent changes. For each peer we remember the version of our table
+ * it last acknowledged, and the version of its table we have applied, which
+ * we send back as our acknowledgement, along with which packet format it
+ * reads.
+ */
+public class MembershipLog
+{
+	private final InetAddress[] addresses;
+	private final PacketStatus[] statuses;
+	private final Map<InetAddress, PeerState> peers = new HashMap<>();
+	// Addresses already written by writeChangesSince, kept to reuse.
+	private final Set<InetAddress> seen = new HashSet<>();
+	private int version;
+
+	/**
+	 * @param capacity Number of recent changes kept. Peers further behind
+	 *                 than this get a full snapshot.
+	 */
+	public MembershipLog(int capacity)
+	{
+		this.addresses = new InetAddress[capacity];
+		this.statuses = new PacketStatus[capacity];
+	}
+
+	/**
+	 * Records a change to the local table.
+	 *
+	 * @param address Address whose status changed.
+	 * @param status  New status, ONLINE or OFFLINE.
+	 * @return The new table version.
+	 */
+	public synchronized int record(InetAddress address, PacketStatus status)
+	{
+		version++;
+		int slot = version % addresses.length;
+		addresses[slot] = address;
+		statuses[slot] = status;
+		return version;
+	}
+
+	public synchronized int version()
+	{
+		return version;
+	}
+
+	/**
+	 * Writes the latest change for every address changed after base. Each
+	 * address appears at most once, so the pages of a message can be applied
+	 * in any order.
+	 *
+	 * @param writer     Writer a message has been begun in.
+	 * @param base       Version the peer already has.
+	 * @param maxChanges Most changes worth sending before a snapshot is
+	 *                   cheaper, usually the size of the table.
+	 * @return false, writing nothing, if base is 0, has fallen out of the log
+	 * or is more than maxChanges behind; a snapshot must be sent instead.
+	 */
+	public synchronized boolean writeChangesSince(PagedPacketWriter writer, int base, int maxChanges)
+	{
+		int behind = version - base;
+		if (base <= 0 || behind < 0 || behind >= addresses.length || behind > maxChanges)
+		{
+			return false;
+		}
+		// Newest first, so the first change seen for an address is its latest.
+		seen.clear();
+		for (int v = version; v > base; v--)
+		{
+			int slot = v % addresses.length;
+			if (seen.add(addresses[slot]))
+			{
+				writer.put(addresses[slot], statuses[slot]);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Remembers the version of our table that peer says it has applied.
+	 * Taken as is rather than as a maximum so a restarted peer gets a
+	 * snapshot.
+	 */
+	public synchronized void acknowledge(InetAddress peer, int ackVersion)
+	{
+		peer(peer).acked = ackVersion;
+	}
+
+	/**
+	 * @return The version of our table peer last acknowledged, 0 if none.
+	 */
+	public synchronized int acknowledged(InetAddress peer)
+	{
+		PeerState state = peers.get(peer);
+		return state == null ? 0 : state.acked;
+	}
+
+	/**
+	 * @return The version of peer's table we have applied, 0 if none.
+	 */
+	public synchronized int appliedFrom(InetAddress peer)
+	{
+		PeerState state = peers.get(peer);
+		return state == null ? 0 : state.applied;
+	}
+
+	/**
+	 * Decides whether the entries of one page of a versioned message from
+	 * sender can be applied. Snapshots (base 0) are always applied. Deltas are
+	 * applied only if they start at or before what we already have, otherwise
+	 * a change is missing and the sender will resend from our last
+	 * acknowledgement, and only if they take us past it, otherwise they were
+	 * overtaken by a newer delta and would put back statuses it changed. Pages
+	 * are applied as they arrive, but our applied version for sender only
+	 * moves once every page of the message is in.
+	 *
+	 * @param sender       Peer the packet came from.
+	 * @param base         Version the message starts from, 0 for a snapshot.
+	 * @param tableVersion Version of sender's table the message brings us to.
+	 * @param page         Index of this page in the message.
+	 * @param lastPage     Whether this is the message's final page.
+	 * @return true if the entries should be applied.
+	 */
+	public synchronized boolean accept(InetAddress sender, int base, int tableVersion, int page, boolean lastPage)
+	{
+		PeerState state = peer(sender);
+		if (base != 0 && (base > state.applied || tableVersion <= state.applied))
+		{
+			return false;
+		}
+
+		if (base != state.assemblingBase || tableVersion != state.assemblingTable)
+		{
+			state.assemblingBase = base;
+			state.assemblingTable = tableVersion;
+			state.pages.clear();
+			state.lastPage = -1;
+		}
+		state.pages.set(page);
+		if (lastPage)
+		{
+			state.lastPage = page;
+		}
+
+		if (state.lastPage >= 0 && state.pages.nextClearBit(0) > state.lastPage)
+		{
+			state.applied = tableVersion;
+			state.assemblingBase = -1;
+		}
+		return true;
+	}
+
+	/**
+	 * Remembers what a packet from peer said about the formats it reads.
+	 *
+	 * @param readsVersioned Whether peer reads version 2 packets.
+	 * @param readsCompact   Whether peer reads version 3 packets.
+	 * @param answersProbes  Whether peer answers probes.
+	 * @param rosterId       Id of the roster peer has loaded, 0 if none.
+	 */
+	public synchronized void heard(InetAddress peer, boolean readsVersioned, boolean readsCompact,
+			boolean answersProbes, int rosterId)
+	{
+		PeerState state = peer(peer);
+		state.heard = true;
+		state.readsVersioned = readsVersioned;
+		state.readsCompact = readsCompact;
+		state.answersProbes = answersProbes;
+		if (rosterId != 0 || !readsCompact)
+		{
+			// Only version 3 packets carry the id.
+			state.rosterId = rosterId;
+		}
+	}
+
+	/**
+	 * @return Whether peer has told us it reads version 2 packets. Until it
+	 * has, it may predate them, and is only sent plain ones.
+	 */
+	public synchronized boolean readsVersioned(InetAddress peer)
+	{
+		PeerState state = peers.get(peer);
+		return state != null && state.readsVersioned;
+	}
+
+	/**
+	 * @return Whether peer has told us it reads version 3 packets.
+	 */
+	public synchronized boolean readsCompact(InetAddress peer)
+	{
+		PeerState state = peers.get(peer);
+		return state != null && state.readsCompact;
+	}
+
+	/**
+	 * @return Whether peer has told us, through heard, what it reads.
+	 */
+	public synchronized boolean hasHeard(InetAddress peer)
+	{
+		PeerState state = peers.get(peer);
+		return state != null && state.heard;
+	}
+
+	/**
+	 * @return Whether peer has told us it answers probes.
+	 */
+	public synchronized boolean answersProbes(InetAddress peer)
+	{
+		PeerState state = peers.get(peer);
+		return state != null && state.answersProbes;
+	}
+
+	/**
+	 * @return Id of the roster peer last told us it has, 0 if none.
+	 */
+	public synchronized int rosterOf(InetAddress peer)
+	{
+		PeerState state = peers.get(peer);
+		return state == null ? 0 : state.rosterId;
+	}
+
+	private PeerState peer(InetAddress address)
+	{
+		PeerState state = peers.get(address);
+		if (state == null)
+		{
+			state = new PeerState();
+			peers.put(address, state);
+		}
+		return state;
+	}
+
+	private static class PeerState
+	{
+		private int acked;
+		private int applied;
+		private boolean heard;
+		private boolean readsVersioned;
+		private boolean readsCompact;
+		private boolean answersProbes;
+		private int rosterId;
+		// Message being reassembled from this peer.
+		private int assemblingBase = -1;
+		private int assemblingTable;
+		private int lastPage = -1;
+		private final BitSet pages = new BitSet();
+	}
+}
@@ -0,0 +1,327 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * Team Rusty Buckets
+ * High Availability Cluster: Project 1
+ * Cameron Moberg, Eli Charleville, Evan Gauer
+ */
+
+/**
+ * Keeps a node's membership table on disk so a restart picks up where it
+ * left off instead of relearning, and re-announcing, every node. Turned on
+ * with -Dhac.state.dir; each role keeps (role).snapshot and (role).journal
+ * there.
+ *
+ * The journal is a memory-mapped file every change is appended to. When it
+ * fills, the whole table is written to a new snapshot, swapped in with an
+ * atomic rename, and the journal starts over. Both carry a generation so a
+ * journal is only replayed onto the snapshot it follows. Changes reach the
+ * file from a queue drained by a daemon thread, so the thread changing the
+ * table only pays for an offer; if the queue overflows, the next snapshot
+ * covers what was dropped.
+ *
+ * That thread also stamps the journal with the time every second, so a
+ * restart can tell how long the node was down. State older than
+ * hac.state.expiry seconds (300) says too little about the cluster now and
+ * is not restored.
+ */
+public class MembershipStore
+{
+	private static String DIR = System.getProperty("hac.state.dir");
+	private static int JOURNAL_BYTES = Integer.getInteger("hac.state.journal", 1024 * 1024);
+	private static int EXPIRY_SECONDS = Integer.getInteger("hac.state.expiry", 300);
+	private static int QUEUE_CAPACITY = 4096;
+	private static int SNAPSHOT_MAGIC = 0x48415332;
+	private static int JOURNAL_MAGIC = 0x48414A32;
+	// Magic, generation, in snapshots entry count, and when the file was
+	// last known current, in milliseconds since the epoch.
+	private static int HEADER_SIZE = 24;
+	private static int SAVED_AT = 16;
+	private static PacketStatus[] STATUSES = PacketStatus.values();
+
+	private final MembershipTable table;
+	private final Path snapshotFile;
+	private final Path journalFile;
+	private final BlockingQueue<Change> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+	// Online nodes restored, which the node may hold back from the table
+	// until they are heard from; snapshots keep them until it has them.
+	private final Map<InetAddress, PacketStatus> held = new LinkedHashMap<>();
+	private volatile boolean overflowed;
+	private MappedByteBuffer journal;
+	private long generation;
+	private long savedAt;
+
+	private MembershipStore(MembershipTable table, Path dir, String role)
+	{
+		this.table = table;
+		this.snapshotFile = dir.resolve(role + ".snapshot");
+		this.journalFile = dir.resolve(role + ".journal");
+	}
+
+	/**
+	 * @param role  Name the files are kept under, such as server.
+	 * @param table Table to keep; must not be changed before restore.
+	 * @return A store for table, or null if hac.state.dir is not set.
+	 */
+	public static MembershipStore configured(String role, MembershipTable table)
+	{
+		if (DIR == null)
+		{
+			return null;
+		}
+		return new MembershipStore(table, Paths.get(DIR), role);
+	}
+
+	/**
+	 * Reads the snapshot and replays the journal onto it, then hands over the
+	 * last status of every address, unless it is older than hac.state.expiry.
+	 * into should put it in the table; those changes are not journaled again.
+	 * It may hold online nodes back instead, and snapshots still have them
+	 * online until they are in the table.
+	 *
+	 * @return Number of addresses restored.
+	 */
+	public int restore(BiConsumer<InetAddress, PacketStatus> into)
+	{
+		Map<InetAddress, PacketStatus> restored = new LinkedHashMap<>();
+		generation = read(snapshotFile, SNAPSHOT_MAGIC, -1, restored);
+		if (generation < 0)
+		{
+			generation = 0;
+		} else
+		{
+			read(journalFile, JOURNAL_MAGIC, generation, restored);
+		}
+		long age = System.currentTimeMillis() - savedAt;
+		if (age > TimeUnit.SECONDS.toMillis(EXPIRY_SECONDS))
+		{
+			if (!restored.isEmpty())
+			{
+				System.out.println("Discarded membership state " + TimeUnit.MILLISECONDS.toSeconds(age)
+						+ " s old");
+			}
+			return 0;
+		}
+		restored.forEach((address, status) ->
+		{
+			if (status == PacketStatus.ONLINE)
+			{
+				held.put(address, status);
+			}
+		});
+		restored.forEach(into);
+		return restored.size();
+	}
+
+	/**
+	 * Starts recording changes to the table. Writes a fresh snapshot first,
+	 * so the journal starts from what was just restored.
+	 */
+	public void start(String threadName)
+	{
+		try
+		{
+			Files.createDirectories(snapshotFile.getParent());
+			try (FileChannel channel = FileChannel.open(journalFile, StandardOpenOption.CREATE,
+					StandardOpenOption.READ, StandardOpenOption.WRITE))
+			{
+				journal = channel.map(FileChannel.MapMode.READ_WRITE, 0, JOURNAL_BYTES);
+			}
+			snapshot();
+		} catch (IOException e)
+		{
+			e.printStackTrace();
+			return;
+		}
+
+		table.addListener(this::changed);
+		Thread thread = new Thread(this::run, threadName);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Called by the table, under its lock, on every change.
+	 */
+	private void changed(InetAddress address, PacketStatus status)
+	{
+		if (!queue.offer(new Change(address, status)))
+		{
+			overflowed = true;
+		}
+	}
+
+	private void run()
+	{
+		while (true)
+		{
+			try
+			{
+				Change change = queue.poll(1, TimeUnit.SECONDS);
+				journal.putLong(SAVED_AT, System.currentTimeMillis());
+				if (overflowed)
+				{
+					overflowed = false;
+					queue.clear();
+					snapshot();
+				} else if (change != null && !append(change))
+				{
+					// Journal full; the snapshot includes this change.
+					snapshot();
+				}
+			} catch (InterruptedException e)
+			{
+				return;
+			} catch (IOException e)
+			{
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * @return false if the journal has no room for change.
+	 */
+	private boolean append(Change change)
+	{
+		byte[] address = change.address.getAddress();
+		// Record, then the length byte of 0 that marks the end.
+		if (journal.remaining() < 2 + address.length + 1)
+		{
+			return false;
+		}
+		putEntry(journal, address, change.status);
+		journal.put(journal.position(), (byte) 0);
+		return true;
+	}
+
+	/**
+	 * Writes the whole table, and the held nodes it doesn't have yet, to a
+	 * new snapshot with the next generation and starts the journal over
+	 * after it.
+	 */
+	private void snapshot() throws IOException
+	{
+		List<InetAddress> addresses = new ArrayList<>();
+		List<PacketStatus> statuses = new ArrayList<>();
+		int[] bytes = {HEADER_SIZE};
+		BiConsumer<InetAddress, PacketStatus> add = (address, status) ->
+		{
+			addresses.add(address);
+			statuses.add(status);
+			bytes[0] += 2 + address.getAddress().length;
+		};
+		// Held first, so the table wins for a node it took in meanwhile.
+		held.keySet().removeIf(address -> table.status(address) != null);
+		held.forEach(add);
+		table.forEach(add);
+
+		generation++;
+		Path temp = snapshotFile.resolveSibling(snapshotFile.getFileName() + ".tmp");
+		try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))
+		{
+			MappedByteBuffer out = channel.map(FileChannel.MapMode.READ_WRITE, 0, bytes[0]);
+			out.putInt(SNAPSHOT_MAGIC).putLong(generation).putInt(addresses.size())
+					.putLong(System.currentTimeMillis());
+			for (int i = 0; i < addresses.size(); i++)
+			{
+				putEntry(out, addresses.get(i).getAddress(), statuses.get(i));
+			}
+			out.force();
+		}
+		Files.move(temp, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+		journal.clear();
+		journal.putInt(JOURNAL_MAGIC).putLong(generation).putInt(0).putLong(System.currentTimeMillis());
+		journal.put(journal.position(), (byte) 0);
+		journal.force();
+	}
+
+	private static void putEntry(ByteBuffer out, byte[] address, PacketStatus status)
+	{
+		out.put((byte) address.length);
+		out.put((byte) status.getStatusCode());
+		out.put(address);
+	}
+
+	/**
+	 * Reads the entries of file into statuses, later entries replacing
+	 * earlier ones for the same address, and moves savedAt up to the file's.
+	 *
+	 * @param generation Generation the file must have, or -1 for any.
+	 * @return The file's generation, or -1 if it is missing, another kind of
+	 * file or from another generation.
+	 */
+	private long read(Path file, int magic, long generation, Map<InetAddress, PacketStatus> statuses)
+	{
+		if (!Files.exists(file))
+		{
+			return -1;
+		}
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ))
+		{
+			MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if (in.remaining() < HEADER_SIZE || in.getInt() != magic)
+			{
+				return -1;
+			}
+			long found = in.getLong();
+			if (generation >= 0 && found != generation)
+			{
+				return -1;
+			}
+			in.getInt();
+			savedAt = Math.max(savedAt, in.getLong());
+
+			// Entries run until a length of 0, or a torn write at the end.
+			while (in.remaining() >= 2)
+			{
+				int length = in.get();
+				int code = in.get();
+				if ((length != 4 && length != 16) || code < 0 || code >= STATUSES.length
+						|| in.remaining() < length)
+				{
+					break;
+				}
+				byte[] address = new byte[length];
+				in.get(address);
+				statuses.put(InetAddress.getByAddress(address), STATUSES[code]);
+			}
+			return found;
+		} catch (IOException e)
+		{
+			e.printStackTrace();
+			return -1;
+		}
+	}
+
+	private static class Change
+	{
+		private final InetAddress address;
+		private final PacketStatus status;
+
+		private Change(InetAddress address, PacketStatus status)
+		{
+			this.address = address;
+			this.status = status;
+		}
+	}
+}
@@ -0,0 +1,436 @@
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Team Rusty Buckets
+ * High Availability Cluster: Project 1
+ * Cameron Moberg, Eli Charleville, Evan Gauer
+ */
+
+/**
+ * A node's view of the cluster: one status per known address, ONLINE or
+ * OFFLINE, with when it was last heard from and, for roles that detect
+ * failures, its detector. Open addressing keyed on the address packed into
+ * primitives (an int for IPv4, two longs for IPv6) with the state kept in
+ * parallel arrays, so a lookup boxes nothing and costs one probe sequence
+ * instead of a list scan. Reads are optimistic and take no lock unless a
+ * write raced them; writes are serialized. Addresses are never removed, a
+ * node that goes away is just marked OFFLINE.
+ */
+public class MembershipTable
+{
+	private static final byte EMPTY = 0;
+	private static final byte IPV4 = 4;
+	private static final byte IPV6 = 6;
+	private static final PacketStatus[] STATUSES = PacketStatus.values();
+
+	private final StampedLock lock = new StampedLock();
+	private Slots slots = new Slots(64);
+	private int size;
+	private int online;
+	private volatile int version;
+	private final List<BiConsumer<InetAddress, PacketStatus>> listeners = new ArrayList<>();
+
+	/**
+	 * @return Status of address, or null if it has never been seen.
+	 */
+	public PacketStatus status(InetAddress address)
+	{
+		long stamp = lock.tryOptimisticRead();
+		Slots s = slots;
+		int slot = s.find(address);
+		byte state = slot < 0 ? -1 : s.states[slot];
+		if (!lock.validate(stamp))
+		{
+			stamp = lock.readLock();
+			try
+			{
+				s = slots;
+				slot = s.find(address);
+				state = slot < 0 ? -1 : s.states[slot];
+			} finally
+			{
+				lock.unlockRead(stamp);
+			}
+		}
+		return state < 0 ? null : STATUSES[state];
+	}
+
+	public boolean isOnline(InetAddress address)
+	{
+		return status(address) == PacketStatus.ONLINE;
+	}
+
+	/**
+	 * @return Detector of address, or null if it is not online or has none.
+	 */
+	public PhiAccrualDetector detector(InetAddress address)
+	{
+		long stamp = lock.tryOptimisticRead();
+		Slots s = slots;
+		int slot = s.find(address);
+		PhiAccrualDetector detector = slot < 0 ? null : s.detectors[slot];
+		if (!lock.validate(stamp))
+		{
+			stamp = lock.readLock();
+			try
+			{
+				s = slots;
+				slot = s.find(address);
+				detector = slot < 0 ? null : s.detectors[slot];
+			} finally
+			{
+				lock.unlockRead(stamp);
+			}
+		}
+		return detector;
+	}
+
+	/**
+	 * @return When address was last heard from, from System.nanoTime, or 0
+	 * if it never has been.
+	 */
+	public long lastSeen(InetAddress address)
+	{
+		long stamp = lock.tryOptimisticRead();
+		Slots s = slots;
+		int slot = s.find(address);
+		long lastSeen = slot < 0 ? 0 : s.lastSeen[slot];
+		if (!lock.validate(stamp))
+		{
+			stamp = lock.readLock();
+			try
+			{
+				s = slots;
+				slot = s.find(address);
+				lastSeen = slot < 0 ? 0 : s.lastSeen[slot];
+			} finally
+			{
+				lock.unlockRead(stamp);
+			}
+		}
+		return lastSeen;
+	}
+
+	/**
+	 * Marks address ONLINE, with detector watching it from now.
+	 *
+	 * @return The status address had before, null if it was unknown.
+	 */
+	public PacketStatus markOnline(InetAddress address, PhiAccrualDetector detector, long nowNanos)
+	{
+		return put(address, PacketStatus.ONLINE, detector, nowNanos);
+	}
+
+	/**
+	 * Marks address OFFLINE and drops its detector.
+	 *
+	 * @return The status address had before, null if it was unknown.
+	 */
+	public PacketStatus markOffline(InetAddress address)
+	{
+		return put(address, PacketStatus.OFFLINE, null, 0);
+	}
+
+	/**
+	 * Notes that address was heard from, if it is known.
+	 */
+	public void touch(InetAddress address, long nowNanos)
+	{
+		long stamp = lock.writeLock();
+		try
+		{
+			int slot = slots.find(address);
+			if (slot >= 0)
+			{
+				slots.lastSeen[slot] = nowNanos;
+			}
+		} finally
+		{
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	private PacketStatus put(InetAddress address, PacketStatus status, PhiAccrualDetector detector, long nowNanos)
+	{
+		long stamp = lock.writeLock();
+		try
+		{
+			int slot = slots.find(address);
+			PacketStatus previous = null;
+			if (slot < 0)
+			{
+				if ((size + 1) * 2 > slots.addresses.length)
+				{
+					slots = slots.grow();
+				}
+				slot = slots.insert(address);
+				size++;
+			} else
+			{
+				previous = STATUSES[slots.states[slot]];
+			}
+
+			if (previous == PacketStatus.ONLINE)
+			{
+				online--;
+			}
+			if (status == PacketStatus.ONLINE)
+			{
+				online++;
+			}
+			if (previous != status)
+			{
+				version++;
+				for (int i = 0; i < listeners.size(); i++)
+				{
+					listeners.get(i).accept(address, status);
+				}
+			}
+			slots.states[slot] = (byte) status.getStatusCode();
+			slots.detectors[slot] = detector;
+			if (nowNanos != 0)
+			{
+				slots.lastSeen[slot] = nowNanos;
+			}
+			return previous;
+		} finally
+		{
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * @return Number of addresses known, online or offline.
+	 */
+	public int size()
+	{
+		long stamp = lock.readLock();
+		try
+		{
+			return size;
+		} finally
+		{
+			lock.unlockRead(stamp);
+		}
+	}
+
+	public int onlineCount()
+	{
+		long stamp = lock.readLock();
+		try
+		{
+			return online;
+		} finally
+		{
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * Adds a callback for every status change, after any added before. It
+	 * runs on the writing thread with the table locked, so must be quick and
+	 * must not touch the table.
+	 */
+	public void addListener(BiConsumer<InetAddress, PacketStatus> listener)
+	{
+		long stamp = lock.writeLock();
+		try
+		{
+			listeners.add(listener);
+		} finally
+		{
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * @return Count of status changes so far, to tell cheaply whether the
+	 * table changed.
+	 */
+	public int version()
+	{
+		return version;
+	}
+
+	/**
+	 * Calls action with every known address and its status. Writers wait
+	 * until it returns.
+	 */
+	public void forEach(BiConsumer<InetAddress, PacketStatus> action)
+	{
+		long stamp = lock.readLock();
+		try
+		{
+			Slots s = slots;
+			for (int i = 0; i < s.addresses.length; i++)
+			{
+				if (s.families[i] != EMPTY)
+				{
+					action.accept(s.addresses[i], STATUSES[s.states[i]]);
+				}
+			}
+		} finally
+		{
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * Calls action with every address that has status. Writers wait until it
+	 * returns.
+	 */
+	public void forEach(PacketStatus status, Consumer<InetAddress> action)
+	{
+		long stamp = lock.readLock();
+		try
+		{
+			Slots s = slots;
+			for (int i = 0; i < s.addresses.length; i++)
+			{
+				if (s.families[i] != EMPTY && s.states[i] == status.getStatusCode())
+				{
+					action.accept(s.addresses[i]);
+				}
+			}
+		} finally
+		{
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * The arrays behind the table, swapped whole on growth so a reader always
+	 * probes a consistent set.
+	 */
+	private static class Slots
+	{
+		private final byte[] families;
+		private final long[] high;
+		private final long[] low;
+		private final byte[] states;
+		private final long[] lastSeen;
+		private final InetAddress[] addresses;
+		private final PhiAccrualDetector[] detectors;
+
+		private Slots(int capacity)
+		{
+			families = new byte[capacity];
+			high = new long[capacity];
+			low = new long[capacity];
+			states = new byte[capacity];
+			lastSeen = new long[capacity];
+			addresses = new InetAddress[capacity];
+			detectors = new PhiAccrualDetector[capacity];
+		}
+
+		/**
+		 * @return Slot holding address, or -1.
+		 */
+		private int find(InetAddress address)
+		{
+			byte family;
+			long hi;
+			long lo;
+			if (address instanceof Inet4Address)
+			{
+				// Inet4Address hashes to its packed address, which avoids copying the bytes out.
+				family = IPV4;
+				hi = 0;
+				lo = address.hashCode() & 0xFFFFFFFFL;
+			} else
+			{
+				byte[] bytes = address.getAddress();
+				family = IPV6;
+				hi = pack(bytes, 0);
+				lo = pack(bytes, 8);
+			}
+
+			int mask = families.length - 1;
+			int slot = hash(hi, lo) & mask;
+			while (families[slot] != EMPTY)
+			{
+				if (families[slot] == family && high[slot] == hi && low[slot] == lo)
+				{
+					return slot;
+				}
+				slot = (slot + 1) & mask;
+			}
+			return -1;
+		}
+
+		private int insert(InetAddress address)
+		{
+			byte family;
+			long hi;
+			long lo;
+			if (address instanceof Inet4Address)
+			{
+				family = IPV4;
+				hi = 0;
+				lo = address.hashCode() & 0xFFFFFFFFL;
+			} else
+			{
+				byte[] bytes = address.getAddress();
+				family = IPV6;
+				hi = pack(bytes, 0);
+				lo = pack(bytes, 8);
+			}
+			return insert(family, hi, lo, address);
+		}
+
+		private int insert(byte family, long hi, long lo, InetAddress address)
+		{
+			int mask = families.length - 1;
+			int slot = hash(hi, lo) & mask;
+			while (families[slot] != EMPTY)
+			{
+				slot = (slot + 1) & mask;
+			}
+			high[slot] = hi;
+			low[slot] = lo;
+			addresses[slot] = address;
+			// Written last so a racing optimistic reader never matches a half filled slot.
+			families[slot] = family;
+			return slot;
+		}
+
+		private Slots grow()
+		{
+			Slots grown = new Slots(families.length * 2);
+			for (int i = 0; i < families.length; i++)
+			{
+				if (families[i] != EMPTY)
+				{
+					int slot = grown.insert(families[i], high[i], low[i], addresses[i]);
+					grown.states[slot] = states[i];
+					grown.lastSeen[slot] = lastSeen[i];
+					grown.detectors[slot] = detectors[i];
+				}
+			}
+			return grown;
+		}
+
+		private static long pack(byte[] bytes, int offset)
+		{
+			long value = 0;
+			for (int i = offset; i < offset + 8; i++)
+			{
+				value = (value << 8) | (bytes[i] & 0xFF);
+			}
+			return value;
+		}
+
+		private static int hash(long hi, long lo)
+		{
+			long h = (hi * 0x9E3779B97F4A7C15L) ^ lo;
+			h *= 0xC2B2AE3D27D4EB4FL;
+			return (int) (h ^ (h >>> 32));
+		}
+	}
+}
@@ -0,0 +1,253 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Team Rusty Buckets
+ * High Availability Cluster: Project 1
+ * Cameron Moberg, Eli Charleville, Evan Gauer
+ */
+
+/**
+ * Counters and latency histograms for one node, cheap enough to leave on:
+ * every record is a LongAdder update, striped across threads and free of
+ * allocation. export shows them over JMX, and, with -Dhac.metrics.port, as
+ * Prometheus text at http://127.0.0.1:(port)/metrics. hac.metrics.host
+ * binds somewhere other than loopback.
+ */
+public class Metrics implements MetricsMXBean
+{
+	private static int HTTP_PORT = Integer.getInteger("hac.metrics.port", 0);
+	private static String HTTP_HOST = System.getProperty("hac.metrics.host", "127.0.0.1");
+	// Buckets from about 1 microsecond to about 36 minutes are written out;
+	// values outside land in the first bucket or only in +Inf.
+	private static int FIRST_EXPORTED_BUCKET = 9;
+	private static int LAST_EXPORTED_BUCKET = 40;
+
+	public final LongAdder packetsReceived = new LongAdder();
+	public final LongAdder bytesReceived = new LongAdder();
+	public final LongAdder packetsSent = new LongAdder();
+	public final LongAdder bytesSent = new LongAdder();
+	public final LongAdder decodeErrors = new LongAdder();
+	// Parallel sends dropped for missing their deadline.
+	public final LongAdder sendsLate = new LongAdder();
+	// Between heartbeats from the same node.
+	public final Histogram heartbeatInterval = new Histogram();
+	// From a node's last heartbeat to our marking it failed.
+	public final Histogram failureDetection = new Histogram();
+	// One pass of sending heartbeats, or one gossip round.
+	public final Histogram sendLoop = new Histogram();
+
+	private final String role;
+	private final MembershipTable membership;
+
+	/**
+	 * @param role       Which kind of node this is, such as server; used as
+	 *                   a label.
+	 * @param membership Table whose size is reported.
+	 */
+	public Metrics(String role, MembershipTable membership)
+	{
+		this.role = role;
+		this.membership = membership;
+	}
+
+	/**
+	 * Counts one received datagram.
+	 */
+	public void received(int bytes)
+	{
+		packetsReceived.increment();
+		bytesReceived.add(bytes);
+	}
+
+	/**
+	 * Counts one sent datagram.
+	 */
+	public void sent(int bytes)
+	{
+		packetsSent.increment();
+		bytesSent.add(bytes);
+	}
+
+	/**
+	 * Registers the JMX bean and starts the HTTP endpoint if a port is set.
+	 * Failures are printed and otherwise ignored; metrics are never worth
+	 * stopping a node for.
+	 */
+	public void export()
+	{
+		try
+		{
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+					new ObjectName("hac:type=Metrics,role=" + ObjectName.quote(role)));
+		} catch (JMException e)
+		{
+			e.printStackTrace();
+		}
+
+		if (HTTP_PORT <= 0)
+		{
+			return;
+		}
+		try
+		{
+			HttpServer server = HttpServer.create(
+					new InetSocketAddress(InetAddress.getByName(HTTP_HOST), HTTP_PORT), 0);
+			server.createContext("/metrics", this::serve);
+			server.start();
+		} catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+	}
+
+	private void serve(HttpExchange exchange) throws IOException
+	{
+		byte[] body = prometheus().getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+		exchange.sendResponseHeaders(200, body.length);
+		try (OutputStream out = exchange.getResponseBody())
+		{
+			out.write(body);
+		}
+	}
+
+	/**
+	 * @return Every metric in the Prometheus text exposition format.
+	 */
+	public String prometheus()
+	{
+		StringBuilder out = new StringBuilder(4096);
+		String labels = "role=\"" + role + "\"";
+		counter(out, "hac_packets_received_total", "Datagrams received.", labels, packetsReceived.sum());
+		counter(out, "hac_bytes_received_total", "Bytes of datagrams received.", labels, bytesReceived.sum());
+		counter(out, "hac_packets_sent_total", "Datagrams sent.", labels, packetsSent.sum());
+		counter(out, "hac_bytes_sent_total", "Bytes of datagrams sent.", labels, bytesSent.sum());
+		counter(out, "hac_decode_errors_total", "Datagrams that were truncated or malformed.", labels,
+				decodeErrors.sum());
+		counter(out, "hac_sends_late_total", "Parallel sends dropped for missing their deadline.", labels,
+				sendsLate.sum());
+		gauge(out, "hac_members", "Nodes in the membership table.", labels, membership.size());
+		gauge(out, "hac_online_members", "Nodes in the membership table that are online.", labels,
+				membership.onlineCount());
+		histogram(out, "hac_heartbeat_interval_seconds", "Time between heartbeats from the same node.",
+				labels, heartbeatInterval);
+		histogram(out, "hac_failure_detection_seconds", "Time from a node's last heartbeat to marking it failed.",
+				labels, failureDetection);
+		histogram(out, "hac_send_loop_seconds", "Time to send one round of heartbeats.", labels, sendLoop);
+		return out.toString();
+	}
+
+	private static void counter(StringBuilder out, String name, String help, String labels, long value)
+	{
+		header(out, name, help, "counter");
+		out.append(name).append('{').append(labels).append("} ").append(value).append('\n');
+	}
+
+	private static void gauge(StringBuilder out, String name, String help, String labels, long value)
+	{
+		header(out, name, help, "gauge");
+		out.append(name).append('{').append(labels).append("} ").append(value).append('\n');
+	}
+
+	private static void histogram(StringBuilder out, String name, String help, String labels, Histogram histogram)
+	{
+		header(out, name, help, "histogram");
+		long[] counts = histogram.counts();
+		long cumulative = 0;
+		for (int i = 0; i < counts.length; i++)
+		{
+			cumulative += counts[i];
+			if (i >= FIRST_EXPORTED_BUCKET && i <= LAST_EXPORTED_BUCKET)
+			{
+				out.append(name).append("_bucket{").append(labels).append(",le=\"")
+						.append(Histogram.upperBound(i) / 1e9).append("\"} ").append(cumulative).append('\n');
+			}
+		}
+		out.append(name).append("_bucket{").append(labels).append(",le=\"+Inf\"} ").append(cumulative).append('\n');
+		out.append(name).append("_sum{").append(labels).append("} ").append(histogram.sum() / 1e9).append('\n');
+		out.append(name).append("_count{").append(labels).append("} ").append(cumulative).append('\n');
+	}
+
+	private static void header(StringBuilder out, String name, String help, String type)
+	{
+		out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+	}
+
+	@Override
+	public long getPacketsReceived()
+	{
+		return packetsReceived.sum();
+	}
+
+	@Override
+	public long getBytesReceived()
+	{
+		return bytesReceived.sum();
+	}
+
+	@Override
+	public long getPacketsSent()
+	{
+		return packetsSent.sum();
+	}
+
+	@Override
+	public long getBytesSent()
+	{
+		return bytesSent.sum();
+	}
+
+	@Override
+	public long getDecodeErrors()
+	{
+		return decodeErrors.sum();
+	}
+
+	@Override
+	public long getSendsLate()
+	{
+		return sendsLate.sum();
+	}
+
+	@Override
+	public int getMembers()
+	{
+		return membership.size();
+	}
+
+	@Override
+	public int getOnlineMembers()
+	{
+		return membership.onlineCount();
+	}
+
+	@Override
+	public Histogram.Summary getHeartbeatInterval()
+	{
+		return heartbeatInterval.summary();
+	}
+
+	@Override
+	public Histogram.Summary getFailureDetection()
+	{
+		return failureDetection.summary();
+	}
+
+	@Override
+	public Histogram.Summary getSendLoop()
+	{
+		return sendLoop.summary();
+	}
+}
@@ -0,0 +1,34 @@
+/**
+ * Team Rusty Buckets
+ * High Availability Cluster: Project 1
+ * Cameron Moberg, Eli Charleville, Evan Gauer
+ */
+
+/**
+ * What Metrics shows over JMX, under hac:type=Metrics,role=(role). Counters
+ * are totals since start; JMX consoles chart their rate.
+ */
+public interface MetricsMXBean
+{
+	long getPacketsReceived();
+
+	long getBytesReceived();
+
+	long getPacketsSent();
+
+	long getBytesSent();
+
+	long getDecodeErrors();
+
+	long getSendsLate();
+
+	int getMembers();
+
+	int getOnlineMembers();
+
+	Histogram.Summary getHeartbeatInterval();
+
+	Histogram.Summary getFailureDetection();
+
+	Histogram.Summary getSendLoop();
+}
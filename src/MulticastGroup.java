@@ -0,0 +1,103 @@
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.net.StandardSocketOptions;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * Team Rusty Buckets
+ * High Availability Cluster: Project 1
+ * Cameron Moberg, Eli Charleville, Evan Gauer
+ */
+
+/**
+ * IP multicast group that heartbeats and alerts can be sent to once instead
+ * of once per line of the ips file. Configured with -Dhac.multicast.group,
+ * and optionally hac.multicast.interface (a network interface name) and
+ * hac.multicast.ttl. Left unset, or if the group can't be used, everything
+ * stays unicast.
+ */
+public class MulticastGroup
+{
+	private static String GROUP = System.getProperty("hac.multicast.group");
+	private static String INTERFACE = System.getProperty("hac.multicast.interface");
+	private static int TTL = Integer.getInteger("hac.multicast.ttl", 1);
+
+	private final InetSocketAddress target;
+	private final NetworkInterface networkInterface;
+
+	private MulticastGroup(InetSocketAddress target, NetworkInterface networkInterface)
+	{
+		this.target = target;
+		this.networkInterface = networkInterface;
+	}
+
+	/**
+	 * @param port Port the group's members listen on.
+	 * @return The configured group, or null if multicast is off or the group
+	 * or interface is not usable.
+	 */
+	public static MulticastGroup configured(int port)
+	{
+		if (GROUP == null)
+		{
+			return null;
+		}
+
+		try
+		{
+			InetAddress group = InetAddress.getByName(GROUP);
+			if (!group.isMulticastAddress())
+			{
+				System.out.println(GROUP + " is not a multicast address, staying unicast");
+				return null;
+			}
+			NetworkInterface networkInterface = INTERFACE == null ? null : NetworkInterface.getByName(INTERFACE);
+			return new MulticastGroup(new InetSocketAddress(group, port), networkInterface);
+		} catch (IOException e)
+		{
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * @return Address to send to for every member to receive.
+	 */
+	public InetSocketAddress target()
+	{
+		return target;
+	}
+
+	/**
+	 * Opens a socket on port that has joined the group, so it receives what
+	 * is sent to the group as well as unicast.
+	 */
+	public DatagramSocket openSocket(int port) throws IOException
+	{
+		MulticastSocket socket = new MulticastSocket(port);
+		socket.setTimeToLive(TTL);
+		if (networkInterface != null)
+		{
+			socket.setNetworkInterface(networkInterface);
+		}
+		socket.joinGroup(new InetSocketAddress(target.getAddress(), 0), networkInterface);
+		return socket;
+	}
+
+	/**
+	 * Sets up channel to send to the group. Sending needs no membership, so
+	 * the channel doesn't join.
+	 */
+	public void configure(DatagramChannel channel) throws IOException
+	{
+		channel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, TTL);
+		if (networkInterface != null)
+		{
+			channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, networkInterface);
+		}
+	}
+}
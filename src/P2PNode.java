@@ -1,22 +1,20 @@
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.NetworkInterface;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
-import java.time.Duration;
-import java.time.Instant;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Enumeration;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.Random;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
 
 /**
  * Team Rusty Buckets
@@ -27,15 +25,109 @@ import java.util.concurrent.ConcurrentHashMap;
 public class P2PNode
 {
 	private static int NODE_OFFLINE = 35;
+	private static double PHI_THRESHOLD = Double.parseDouble(System.getProperty("hac.phi.threshold", "8"));
+	// Peers heartbeat every 1-30 seconds outside gossip mode.
+	private static int FIRST_HEARTBEAT_ESTIMATE_MS = 15500;
 	private static int PORT_NUM = 9999;
+	private static int LOG_CAPACITY = 1024;
+	private static int POOL_CAPACITY = 64;
+	private static int MULTICAST_PORT = Integer.getInteger("hac.multicast.port", PORT_NUM);
+	// SWIM style gossip instead of heartbeating every peer.
+	private static boolean GOSSIP_MODE = Boolean.getBoolean("hac.gossip");
+	private static int GOSSIP_FANOUT = Integer.getInteger("hac.gossip.fanout", 3);
+	private static int GOSSIP_INTERVAL_MS = Integer.getInteger("hac.gossip.interval", 1000);
+	// Version 3 heartbeats to peers that read them; false sends only version 2.
+	private static boolean COMPACT = Boolean.parseBoolean(System.getProperty("hac.wire.compact", "true"));
+	// Node deadlines are checked to within a tick; 512 ticks cover NODE_OFFLINE.
+	private static int WHEEL_TICK_MS = 100;
+	private static int WHEEL_SIZE = 512;
 
-	private Map<InetAddress, Instant> onlineIpMap = new ConcurrentHashMap<>();
-	private List<InetAddress> offlineIpList = new ArrayList<>();
+	private MembershipTable membership = new MembershipTable();
+	private MembershipEvents events = new MembershipEvents();
+	private StatusReporter reporter;
+	private Metrics metrics = new Metrics("p2p", membership);
+	private MembershipStore store;
+	// Peers that were online before a restart and haven't been heard of
+	// since. They are left out of the table until they are.
+	private Set<InetAddress> restoring = ConcurrentHashMap.newKeySet();
 	private List<InetAddress> localIpList;
+	private MembershipLog membershipLog = new MembershipLog(LOG_CAPACITY);
+	// Set in piggyback mode, where alerts ride on heartbeats.
+	private DisseminationBuffer piggyback = DisseminationBuffer.configured();
+	// Answers and relays probes, and unless hac.probe.k is 0 suspects nodes
+	// before failing them.
+	private IndirectProber prober;
+	private TimingWheel<InetAddress> deadlines;
 
-	private String[] ips = readIps();
+	private PeerList peers;
+	private MulticastGroup multicast;
 	private DatagramSocket socket;
-	private Random random = new Random();
+	private Transport transport;
+	private LongSupplier clock;
+	private HeartbeatScheduler scheduler;
+	private HeartbeatScheduler.Task heartbeatTask;
+	private HeartbeatScheduler.Task pruneTask;
+	private BufferPool bufferPool = new BufferPool(POOL_CAPACITY, AvailabilityPacket.MAX_PACKET_SIZE, false);
+	private PagedPacketWriter heartbeatWriter = new PagedPacketWriter(bufferPool);
+	private Random random;
+
+	// Heartbeat encoding currently held by heartbeatWriter, -1 if none.
+	private int encodedBase = -1;
+	private int encodedAck = -1;
+	private int encodedFormat = -1;
+
+	// Shuffled round robin order of ips for gossip probes.
+	private int[] probeOrder = new int[0];
+	private int probeIndex;
+	private int[] fanoutOrder = new int[0];
+
+	// Allocated by begin, nodes that are handed their packets don't need them.
+	private byte[] receiveBytes;
+	private DatagramPacket receivePacket;
+	private ByteBuffer receiveBuffer;
+	private AvailabilityPacket.Reader reader = new AvailabilityPacket.Reader();
+	// Peers whose roster reader was last given.
+	private InetSocketAddress[] readerRoster;
+	private AddressInterner interner = new AddressInterner();
+
+	/**
+	 * Node on the ips file and the system clock, started with begin.
+	 */
+	public P2PNode()
+	{
+		this(new PeerList("ips"), null, null, new HeartbeatScheduler(), System::nanoTime, new Random(), true);
+		this.multicast = MulticastGroup.configured(MULTICAST_PORT);
+		this.store = MembershipStore.configured("p2p", membership);
+	}
+
+	/**
+	 * Node whose surroundings are supplied, as the simulator does. It is
+	 * started with start instead of begin, opens no socket and runs no
+	 * threads: received packets are handed to handlePayload and scheduler is
+	 * driven by the caller.
+	 *
+	 * @param peers       Peers to heartbeat.
+	 * @param localIpList Addresses of this node, never reported to itself.
+	 * @param transport   Where sends go.
+	 * @param scheduler   Scheduler the node's tasks run on.
+	 * @param clock       Source of the current time in nanoseconds.
+	 * @param random      Source of gossip target choices.
+	 * @param report      Whether to report status on stdout.
+	 */
+	public P2PNode(PeerList peers, List<InetAddress> localIpList, Transport transport, HeartbeatScheduler scheduler,
+			LongSupplier clock, Random random, boolean report)
+	{
+		this.peers = peers;
+		this.localIpList = localIpList;
+		this.transport = transport;
+		this.scheduler = scheduler;
+		this.clock = clock;
+		this.random = random;
+		this.reporter = new StatusReporter(membership, report);
+		this.deadlines = new TimingWheel<>(TimeUnit.MILLISECONDS.toNanos(WHEEL_TICK_MS), WHEEL_SIZE,
+				clock.getAsLong());
+		this.prober = new IndirectProber(this::sendProbe, this::peerAddress, this::probeAcked, random);
+	}
 
 	/**
 	 * Sends datagram packet with AvailabilityPacket as payload.
@@ -50,19 +142,38 @@ public class P2PNode
 		{
 			return;
 		}
+		sendPacket(ByteBuffer.wrap(encodedPacket));
+	}
 
-		for (String socketAddr : ips)
-		{
-			//In file the ips are formatted like xxx.xxx.xxx.xxx:8888
-			String ip = socketAddr.split("\\:")[0];
-			int port = Integer.valueOf(socketAddr.split("\\:")[1]);
+	/**
+	 * Sends the encoded packet between buffer's position and limit to every
+	 * address in the ip file, or once to the multicast group.
+	 *
+	 * @param buffer Heap buffer holding an encoded packet.
+	 */
+	public void sendPacket(ByteBuffer buffer)
+	{
+		DatagramPacket packet = new DatagramPacket(buffer.array(),
+				buffer.arrayOffset() + buffer.position(), buffer.remaining());
 
+		if (multicast != null)
+		{
+			try
+			{
+				packet.setSocketAddress(multicast.target());
+				send(packet);
+			} catch (IOException e)
+			{
+				e.printStackTrace();
+			}
+			return;
+		}
+		for (InetSocketAddress target : peers.peers())
+		{
 			try
 			{
-				InetAddress inetAddress = InetAddress.getByName(ip);
-				DatagramPacket packet = new DatagramPacket(encodedPacket, encodedPacket.length,
-						inetAddress, port);
-				socket.send(packet);
+				packet.setSocketAddress(target);
+				send(packet);
 			} catch (IOException e)
 			{
 				e.printStackTrace();
@@ -70,70 +181,409 @@ public class P2PNode
 		}
 	}
 
+	private void send(DatagramPacket packet) throws IOException
+	{
+		metrics.sent(packet.getLength());
+		transport.send(packet);
+	}
+
+	/**
+	 * Sends a single address and status to every address in the ip file. In
+	 * piggyback mode it is queued for the next heartbeats instead. In gossip
+	 * mode without it nothing is sent; the change is already in
+	 * membershipLog and rides along on the next gossip round.
+	 *
+	 * @param address Address the alert is about.
+	 * @param status  New status of address.
+	 */
+	private void sendAlert(InetAddress address, PacketStatus status)
+	{
+		if (piggyback != null)
+		{
+			piggyback.add(address, status, GOSSIP_MODE ? peers.size() : 1);
+			return;
+		}
+		if (GOSSIP_MODE)
+		{
+			return;
+		}
+
+		ByteBuffer buffer = bufferPool.acquire();
+		AvailabilityPacket.begin(buffer);
+		AvailabilityPacket.putEntry(buffer, address, status);
+		AvailabilityPacket.finish(buffer, false);
+		sendPacket(buffer);
+		bufferPool.release(buffer);
+	}
+
+	/**
+	 * Sends every address in the ip file a heartbeat. In multicast mode every
+	 * peer hears every other peer's heartbeat first hand, so there is no table
+	 * to pass on and one empty heartbeat to the group does. It is plain, but
+	 * its flags still tell the group we answer probes.
+	 */
+	private void sendHeartbeat()
+	{
+		long start = System.nanoTime();
+		if (multicast != null)
+		{
+			ByteBuffer buffer = bufferPool.acquire();
+			AvailabilityPacket.begin(buffer);
+			if (piggyback != null)
+			{
+				piggyback.fill((address, status) ->
+				{
+					if (buffer.remaining() < AvailabilityPacket.entrySize(address))
+					{
+						return false;
+					}
+					AvailabilityPacket.putEntry(buffer, address, status);
+					return true;
+				});
+			}
+			AvailabilityPacket.finish(buffer, true);
+			sendPacket(buffer);
+			bufferPool.release(buffer);
+		} else
+		{
+			DatagramPacket packet = new DatagramPacket(new byte[0], 0);
+			InetSocketAddress[] targets = peers.peers();
+			heartbeatWriter.setRoster(targets);
+			for (InetSocketAddress target : targets)
+			{
+				sendHeartbeatTo(target, packet);
+			}
+			heartbeatWriter.reset();
+			encodedBase = -1;
+		}
+		endPiggybackRound();
+		metrics.sendLoop.record(System.nanoTime() - start);
+	}
+
+	/**
+	 * One SWIM style protocol period. Probes the next member in a shuffled
+	 * round robin order, so every member is probed once per pass, and
+	 * piggybacks our changes on heartbeats to GOSSIP_FANOUT other random
+	 * members. Liveness rests on the probe's ack rather than on how often a
+	 * member happens to hear from another, so detection time doesn't grow
+	 * with the cluster. Each node sends a constant number of packets per round however
+	 * big the cluster is, while changes still reach everyone in O(log N)
+	 * rounds with high probability.
+	 */
+	private void gossipRound()
+	{
+		InetSocketAddress[] targets = peers.peers();
+		int n = targets.length;
+		if (n == 0)
+		{
+			return;
+		}
+		if (probeOrder.length != n)
+		{
+			probeOrder = identity(n);
+			fanoutOrder = identity(n);
+			probeIndex = n;
+		}
+
+		if (probeIndex >= n)
+		{
+			shuffle(probeOrder, n);
+			probeIndex = 0;
+		}
+		long start = System.nanoTime();
+		heartbeatWriter.setRoster(targets);
+		int probe = probeOrder[probeIndex++];
+		DatagramPacket packet = new DatagramPacket(new byte[0], 0);
+		sendHeartbeatTo(targets[probe], packet);
+		ping(targets[probe].getAddress());
+
+		// Partial Fisher-Yates picks distinct fan-out targets in O(fanout).
+		int picked = 0;
+		for (int i = 0; i < n && picked < GOSSIP_FANOUT; i++)
+		{
+			int j = i + random.nextInt(n - i);
+			int target = fanoutOrder[j];
+			fanoutOrder[j] = fanoutOrder[i];
+			fanoutOrder[i] = target;
+			if (target != probe)
+			{
+				sendHeartbeatTo(targets[target], packet);
+				picked++;
+			}
+		}
+		heartbeatWriter.reset();
+		encodedBase = -1;
+		endPiggybackRound();
+		metrics.sendLoop.record(System.nanoTime() - start);
+	}
+
+	private void endPiggybackRound()
+	{
+		if (piggyback != null)
+		{
+			piggyback.endRound();
+		}
+	}
+
+	/**
+	 * Pings a gossip round's probe target for an ack. If none comes within
+	 * hac.probe.ack, nodeExpired suspects it, so a crash is noticed by the
+	 * next member to probe it.
+	 */
+	private void ping(InetAddress target)
+	{
+		if (probed(target) && membership.isOnline(target) && !prober.isSuspect(target))
+		{
+			deadlines.schedule(target, prober.ping(target, clock.getAsLong()));
+		}
+	}
+
+	/**
+	 * @return Whether address's liveness rests on gossip probes. Peers that
+	 * don't answer probes are watched through their own heartbeats, which
+	 * they send every peer.
+	 */
+	private boolean probed(InetAddress address)
+	{
+		return GOSSIP_MODE && answersProbes(address);
+	}
+
+	/**
+	 * @return Whether peer may be sent probes: it said it answers them. In
+	 * gossip mode, which only works among nodes that probe, so does a peer
+	 * we haven't heard from directly yet.
+	 */
+	private boolean answersProbes(InetAddress peer)
+	{
+		if (GOSSIP_MODE && !membershipLog.hasHeard(peer))
+		{
+			return true;
+		}
+		return membershipLog.answersProbes(peer);
+	}
+
+	/**
+	 * @return Whether peer may be sent versioned packets: it said it reads
+	 * them, or, in gossip mode, we haven't heard from it directly yet.
+	 */
+	private boolean readsVersioned(InetAddress peer)
+	{
+		if (GOSSIP_MODE && !membershipLog.hasHeard(peer))
+		{
+			return true;
+		}
+		return membershipLog.readsVersioned(peer);
+	}
+
+	/**
+	 * @return Whether peer can be asked to probe another: online, and it
+	 * answers probes.
+	 */
+	private boolean canProbe(InetAddress peer)
+	{
+		return membership.isOnline(peer) && answersProbes(peer);
+	}
+
+	private static int[] identity(int n)
+	{
+		int[] order = new int[n];
+		for (int i = 0; i < n; i++)
+		{
+			order[i] = i;
+		}
+		return order;
+	}
+
+	private void shuffle(int[] order, int n)
+	{
+		for (int i = n - 1; i > 0; i--)
+		{
+			int j = random.nextInt(i + 1);
+			int tmp = order[i];
+			order[i] = order[j];
+			order[j] = tmp;
+		}
+	}
+
+	/**
+	 * Sends socketAddr a heartbeat carrying the changes to our table since the
+	 * version it last acknowledged, or a full snapshot when it is too far
+	 * behind. Either may span several datagrams, in version 3 if the peer
+	 * reads it. A peer that hasn't told us it reads versioned packets gets
+	 * the whole table in plain ones. Consecutive peers that need the same
+	 * message share one encoding.
+	 *
+	 * @param target Peer to send to.
+	 * @param packet Packet reused across the peers of one round.
+	 */
+	private void sendHeartbeatTo(InetSocketAddress target, DatagramPacket packet)
+	{
+		try
+		{
+			InetAddress peer = target.getAddress();
+			int base = membershipLog.acknowledged(peer);
+			int ack = membershipLog.appliedFrom(peer);
+			int format = formatFor(peer);
+			if (base != encodedBase || ack != encodedAck || format != encodedFormat)
+			{
+				encodeHeartbeat(base, ack, format);
+				encodedBase = base;
+				encodedAck = ack;
+				encodedFormat = format;
+			}
+
+			packet.setSocketAddress(target);
+			for (int i = 0; i < heartbeatWriter.pageCount(); i++)
+			{
+				ByteBuffer page = heartbeatWriter.page(i);
+				packet.setData(page.array(), page.arrayOffset(), page.limit());
+				send(packet);
+			}
+		} catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * @return -1 to send peer plain packets, 0 for version 2, 1 for version
+	 * 3, 2 for version 3 with roster sections.
+	 */
+	private int formatFor(InetAddress peer)
+	{
+		if (!readsVersioned(peer))
+		{
+			return -1;
+		}
+		if (!COMPACT || !membershipLog.readsCompact(peer))
+		{
+			return 0;
+		}
+		return membershipLog.rosterOf(peer) == heartbeatWriter.rosterId() ? 2 : 1;
+	}
+
 	/**
-	 * Receives packet, and hands off to another method
+	 * Encodes a heartbeat with our changes since base, falling back to a full
+	 * snapshot of the table, which is all plain packets can carry.
+	 *
+	 * @param base   Version of our table the peer has acknowledged.
+	 * @param ack    Version of the peer's table we have applied.
+	 * @param format From formatFor.
+	 */
+	private void encodeHeartbeat(int base, int ack, int format)
+	{
+		int version = membershipLog.version();
+		boolean delta = format >= 0;
+		if (delta)
+		{
+			beginHeartbeat(base, version, ack, format);
+			delta = membershipLog.writeChangesSince(heartbeatWriter, base, membership.size());
+		}
+		if (!delta)
+		{
+			beginHeartbeat(0, version, ack, format);
+			membership.forEach(heartbeatWriter::put);
+		}
+		if (piggyback != null)
+		{
+			piggyback.fill(heartbeatWriter::putIfRoom);
+		}
+		heartbeatWriter.finish();
+	}
+
+	private void beginHeartbeat(int base, int version, int ack, int format)
+	{
+		if (format < 0)
+		{
+			heartbeatWriter.beginPlain(true);
+		} else if (format == 0)
+		{
+			heartbeatWriter.begin(base, version, ack, true);
+		} else
+		{
+			heartbeatWriter.beginCompact(base, version, ack, true, format == 2);
+		}
+	}
+
+	/**
+	 * Receives packet into the reused receive buffer, and hands off to
+	 * another method
 	 */
 	public void listenPacket()
 	{
-		byte[] buffer = new byte[1024];
-		DatagramPacket dP = new DatagramPacket(buffer, buffer.length);
+		receivePacket.setLength(receiveBytes.length);
 		try
 		{
-			socket.receive(dP);
+			socket.receive(receivePacket);
 		} catch (SocketTimeoutException ignored)
 		{
 			return;
 		} catch (IOException e)
 		{
 			e.printStackTrace();
+			return;
 		}
-		handlePayload(dP);
+		handlePayload(receivePacket);
 	}
 
 	public void handleStatus(InetAddress address, PacketStatus status)
 	{
+		// The checks are lock free; watch and markOffline say what the node
+		// really was, in case the scheduler thread changed it in between.
+		PacketStatus previous;
+		boolean restored = !restoring.isEmpty() && restoring.remove(address);
 		switch (status)
 		{
 			case NEW:
-				if (!onlineIpMap.containsKey(address))
+				if (!membership.isOnline(address) && watch(address) != PacketStatus.ONLINE)
 				{
-					System.out.println("New Node Available");
-					onlineIpMap.put(address, Instant.now());
-					offlineIpList.remove(address);
+					reporter.report("New Node Available");
+					membershipLog.record(address, PacketStatus.ONLINE);
+					events.publish(address, status);
 				}
 				break;
 			case REVIVE:
-				if (!onlineIpMap.containsKey(address))
+				if (!membership.isOnline(address) && watch(address) != PacketStatus.ONLINE)
 				{
-					System.out.println("Node revived " + address.getHostAddress());
-					onlineIpMap.put(address, Instant.now());
-					offlineIpList.remove(address);
+					reporter.report("Node revived " + address.getHostAddress());
+					membershipLog.record(address, PacketStatus.ONLINE);
+					events.publish(address, status);
 				}
 				break;
 			case OFFLINE:
 			case FAIL:
-				if (!offlineIpList.contains(address))
+				if (membership.status(address) != PacketStatus.OFFLINE
+						&& membership.markOffline(address) != PacketStatus.OFFLINE)
 				{
-					System.out.println("Node Offline/Failed " + address.getHostAddress());
-					offlineIpList.add(address);
-					onlineIpMap.remove(address);
+					reporter.report("Node Offline/Failed " + address.getHostAddress());
+					deadlines.cancel(address);
+					prober.clear(address);
+					membershipLog.record(address, PacketStatus.OFFLINE);
+					events.publish(address, status);
 				}
 				break;
 			case ONLINE:
-				if (!onlineIpMap.containsKey(address))
+				if (!membership.isOnline(address))
 				{
-					if (offlineIpList.contains(address))
+					previous = watch(address);
+					if (previous != PacketStatus.ONLINE)
+					{
+						events.publish(address, status);
+					}
+					if (previous == null && restored)
 					{
-						System.out.println("New Node Available - Alerting (Revived)");
-						onlineIpMap.put(address, Instant.now());
-						offlineIpList.remove(address);
-						sendPacket(new AvailabilityPacket(address, PacketStatus.REVIVE, false));
-					} else
+						// The others never stopped counting it online.
+						membershipLog.record(address, PacketStatus.ONLINE);
+					} else if (previous == PacketStatus.OFFLINE)
 					{
-						System.out.println("New Node Available - Alerting (New)");
-						onlineIpMap.put(address, Instant.now());
-						offlineIpList.remove(address);
-						sendPacket(new AvailabilityPacket(address, PacketStatus.NEW, false));
+						reporter.report("New Node Available - Alerting (Revived)");
+						membershipLog.record(address, PacketStatus.ONLINE);
+						sendAlert(address, PacketStatus.REVIVE);
+					} else if (previous == null)
+					{
+						reporter.report("New Node Available - Alerting (New)");
+						membershipLog.record(address, PacketStatus.ONLINE);
+						sendAlert(address, PacketStatus.NEW);
 					}
 				}
 				break;
@@ -147,106 +597,254 @@ public class P2PNode
 	 */
 	public void handlePayload(DatagramPacket packet)
 	{
-		//Handle sender of packet
-		handleStatus(packet.getAddress(), PacketStatus.ONLINE);
+		ByteBuffer buffer = packet.getData() == receiveBytes ? receiveBuffer : ByteBuffer.wrap(packet.getData());
+		buffer.limit(packet.getOffset() + packet.getLength()).position(packet.getOffset());
+		handlePayload(packet.getAddress(), buffer);
+	}
+
+	/**
+	 * Walks the packet in buffer in place and applies each entry's status.
+	 *
+	 * @param sender Address the packet came from.
+	 * @param buffer Buffer holding the packet between position and limit.
+	 */
+	public void handlePayload(InetAddress sender, ByteBuffer buffer)
+	{
+		if (multicast != null && localIpList.contains(sender))
+		{
+			// Our own send to the group looped back.
+			return;
+		}
+		metrics.received(buffer.remaining());
+
+		InetSocketAddress[] roster = peers.peers();
+		if (roster != readerRoster)
+		{
+			byte[][] addresses = new byte[roster.length][];
+			for (int i = 0; i < roster.length; i++)
+			{
+				addresses[i] = roster[i].getAddress().getAddress();
+			}
+			reader.useRoster(AvailabilityPacket.rosterId(roster), addresses);
+			readerRoster = roster;
+		}
+		reader.wrap(buffer);
+		if (reader.tellsFormats())
+		{
+			membershipLog.heard(sender, reader.readsVersioned(), reader.readsCompact(), reader.answersProbes(),
+					reader.senderRoster());
+		}
 
-		AvailabilityPacket decoded = new AvailabilityPacket(packet.getData()).decode();
+		//Handle sender of packet. Only the first packet of each heartbeat feeds
+		//the detector; alerts and later pages come in bursts that would teach
+		//it intervals far shorter than the heartbeat's.
+		PhiAccrualDetector detector = membership.detector(sender);
+		if (detector == null)
+		{
+			handleStatus(sender, PacketStatus.ONLINE);
+		} else if (reader.isHeartbeat() && (!reader.isVersioned() || reader.page() == 0))
+		{
+			long now = clock.getAsLong();
+			metrics.heartbeatInterval.record(now - detector.lastHeartbeatNanos());
+			detector.heartbeat(now);
+			membership.touch(sender, now);
+			if (probed(sender))
+			{
+				// Liveness comes from probes; hearing from it answers any out.
+				prober.clear(sender);
+				deadlines.cancel(sender);
+			} else
+			{
+				deadlines.schedule(sender, now + detector.nanosUntilSuspect(now));
+			}
+		}
+
+		if (reader.isVersioned())
+		{
+			membershipLog.acknowledge(sender, reader.ackVersion());
+			if (!membershipLog.accept(sender, reader.baseVersion(), reader.tableVersion(),
+					reader.page(), reader.isLastPage()))
+			{
+				// Missing changes; our ack makes the sender resend from there.
+				return;
+			}
+		}
 
-		for (Map.Entry<InetAddress, PacketStatus> entry : decoded.getIps().entrySet())
+		while (reader.next())
 		{
-			InetAddress address = entry.getKey();
-			PacketStatus status = entry.getValue();
+			InetAddress address = interner.intern(reader);
+			PacketStatus status = reader.status();
 
-			if (!localIpList.contains(address))
+			if (address == null || status == null)
+			{
+				continue;
+			}
+			if (IndirectProber.isProbe(status))
+			{
+				prober.handle(sender, address, status, localIpList.contains(address), clock.getAsLong());
+			} else if (!localIpList.contains(address))
 			{
 				handleStatus(address, status);
 			}
 		}
+		if (reader.isMalformed())
+		{
+			metrics.decodeErrors.increment();
+		}
 	}
 
 	/**
-	 * Removes nodes that've been offline for more than NODE_OFFLINE time
-	 * from onlineIp list. Also sends packet to all in ip file that a node
-	 * has gone offline.
+	 * @param now Time of the node's first heartbeat.
+	 * @return Failure detector for a node that just came online.
 	 */
-	private void pruneNodes()
+	private PhiAccrualDetector newDetector(long now)
+	{
+		return new PhiAccrualDetector(PHI_THRESHOLD, FIRST_HEARTBEAT_ESTIMATE_MS,
+				TimeUnit.SECONDS.toMillis(NODE_OFFLINE), now);
+	}
+
+	/**
+	 * Marks a node online and starts failure detection for it.
+	 *
+	 * @return The status the node had before, null if it was unknown.
+	 */
+	private PacketStatus watch(InetAddress address)
 	{
-		for (Map.Entry<InetAddress, Instant> ip : onlineIpMap.entrySet())
+		long now = clock.getAsLong();
+		PhiAccrualDetector detector = newDetector(now);
+		PacketStatus previous = membership.markOnline(address, detector, now);
+		if (!GOSSIP_MODE)
 		{
-			Instant ipLastKnown = ip.getValue();
-			if (Instant.now().isAfter(ipLastKnown.plusSeconds(NODE_OFFLINE)))
-			{
-				System.out.println("Node Assumed Offline - Alerting (Failure): " + ip.getKey().getHostAddress());
-				sendPacket(new AvailabilityPacket(ip.getKey(), PacketStatus.FAIL, false));
-				offlineIpList.add(ip.getKey());
-				onlineIpMap.remove(ip.getKey());
-			}
+			deadlines.schedule(address, now + detector.nanosUntilSuspect(now));
 		}
+		return previous;
 	}
 
 	/**
-	 * outputs all ips
+	 * Removes nodes whose suspicion level has reached PHI_THRESHOLD, or that
+	 * have been silent too long, from onlineIp list. Also sends packet to all
+	 * in ip file that a node has gone offline. Only nodes whose deadline has
+	 * come up on the timing wheel are looked at.
 	 */
-	private void outputIps()
+	private void pruneNodes()
 	{
-		System.out.println("----- Online -----");
-		for (InetAddress ip : onlineIpMap.keySet())
+		deadlines.expire(clock.getAsLong(), this::nodeExpired);
+	}
+
+	private void nodeExpired(InetAddress address)
+	{
+		PhiAccrualDetector detector = membership.detector(address);
+		if (detector == null)
+		{
+			if (restoring.remove(address))
+			{
+				// Online before our restart, but silent since.
+				membership.markOffline(address);
+				failed(address);
+			}
+			return;
+		}
+
+		// The listener thread may have taken a heartbeat since the deadline came up.
+		long now = clock.getAsLong();
+		if (probed(address))
+		{
+			// Only probes set its deadlines; an answered one has been cleared.
+			if (!prober.isPinged(address) && !prober.isSuspect(address))
+			{
+				return;
+			}
+		} else if (!membershipLog.hasHeard(address))
+		{
+			// Only others have heard from it, and they fail it if it stops.
+			return;
+		} else if (!detector.isSuspect(now))
 		{
-			System.out.println(ip.getHostAddress());
+			prober.clear(address);
+			deadlines.schedule(address, now + detector.nanosUntilSuspect(now));
+			return;
+		}
+		if (IndirectProber.enabled() && answersProbes(address))
+		{
+			// Give the node until the probes time out to answer.
+			long failAt = prober.suspect(address, peers.peers(), this::canProbe, now);
+			if (failAt - now > 0)
+			{
+				deadlines.schedule(address, failAt);
+				return;
+			}
 		}
-		System.out.println("----- Offline -----");
-		for (InetAddress ip : offlineIpList)
+		// Left behind, a suspicion would fail the node at once next time.
+		prober.clear(address);
+		if (membership.markOffline(address) != PacketStatus.ONLINE)
 		{
-			System.out.println(ip.getHostAddress());
+			return;
 		}
-		System.out.println("----------------");
+		metrics.failureDetection.record(now - detector.lastHeartbeatNanos());
+		failed(address);
 	}
 
 	/**
-	 * Reads in IPs from file.
-	 *
-	 * @return Array of ips in string format xxx.xxx.xxx.xxx:xxxx
+	 * Tells everyone address, just marked offline, has failed.
 	 */
-	private String[] readIps()
+	private void failed(InetAddress address)
 	{
-		File file = new File("ips");
-		ArrayList<String> ipList = new ArrayList<>();
+		reporter.report("Node Assumed Offline - Alerting (Failure): " + address.getHostAddress());
+		sendAlert(address, PacketStatus.FAIL);
+		membershipLog.record(address, PacketStatus.OFFLINE);
+		events.publish(address, PacketStatus.FAIL);
+	}
 
-		try
+	/**
+	 * A suspect answered a probe, directly or through another member, so it
+	 * is alive even if its heartbeats aren't getting through. Counts as a
+	 * heartbeat, which also teaches the detector to allow for the gap.
+	 */
+	private void probeAcked(InetAddress address)
+	{
+		PhiAccrualDetector detector = membership.detector(address);
+		if (detector == null)
 		{
-			BufferedReader br = new BufferedReader(new FileReader(file));
-			String str;
-			while ((str = br.readLine()) != null)
-			{
-				ipList.add(str);
-			}
+			return;
+		}
+		long now = clock.getAsLong();
+		detector.heartbeat(now);
+		membership.touch(address, now);
+		if (probed(address))
+		{
+			deadlines.cancel(address);
+		} else
+		{
+			deadlines.schedule(address, now + detector.nanosUntilSuspect(now));
+		}
+	}
 
+	private void sendProbe(ByteBuffer buffer, InetSocketAddress target)
+	{
+		try
+		{
+			send(new DatagramPacket(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining(),
+					target));
 		} catch (IOException e)
 		{
 			e.printStackTrace();
 		}
-
-		return ipList.toArray((new String[0]));
 	}
 
 	/**
-	 * Combines onlineIp and offlineIp into a map that Availability packet can
-	 * handle. Could be implemented in the Packet class.
-	 *
-	 * @return Map containing online/offline ip addresses.
+	 * @return Where address is reached, from the ips file, or null if it
+	 * isn't in it.
 	 */
-	private Map<InetAddress, PacketStatus> getAllPackets()
+	private InetSocketAddress peerAddress(InetAddress address)
 	{
-		HashMap<InetAddress, PacketStatus> map = new HashMap<>();
-		for (InetAddress address : onlineIpMap.keySet())
+		for (InetSocketAddress peer : peers.peers())
 		{
-			map.put(address, PacketStatus.ONLINE);
-		}
-		for (InetAddress address : offlineIpList)
-		{
-			map.put(address, PacketStatus.OFFLINE);
+			if (peer.getAddress().equals(address))
+			{
+				return peer;
+			}
 		}
-		return map;
+		return null;
 	}
 
 	/**
@@ -255,61 +853,159 @@ public class P2PNode
 	private List<InetAddress> populateLocalAddresses() throws SocketException
 	{
 		List<InetAddress> listOfAddr = new ArrayList<>();
-		Enumeration e = NetworkInterface.getNetworkInterfaces();
+		Enumeration<NetworkInterface> e = NetworkInterface.getNetworkInterfaces();
 
 		while (e.hasMoreElements())
 		{
-			NetworkInterface netInterface = (NetworkInterface) e.nextElement();
-			Enumeration ee = netInterface.getInetAddresses();
+			Enumeration<InetAddress> ee = e.nextElement().getInetAddresses();
 			while (ee.hasMoreElements())
 			{
-				listOfAddr.add((InetAddress) ee.nextElement());
+				listOfAddr.add(ee.nextElement());
 			}
 		}
 		return listOfAddr;
 	}
 
 	/**
-	 * Start up the 2 threads, one that receives and outputs, and one that
-	 * sends heartbeats out.
+	 * @return Socket on PORT_NUM, joined to the multicast group if one is
+	 * configured and usable.
+	 */
+	private DatagramSocket openSocket() throws SocketException
+	{
+		if (multicast != null)
+		{
+			try
+			{
+				return multicast.openSocket(PORT_NUM);
+			} catch (IOException e)
+			{
+				e.printStackTrace();
+				System.out.println("Multicast unavailable, falling back to unicast");
+				multicast = null;
+			}
+		}
+		return new DatagramSocket(PORT_NUM);
+	}
+
+	/**
+	 * Start up the 2 threads, one that receives, and the
+	 * scheduler that sends heartbeats out and prunes timed out nodes.
 	 */
 	public void begin()
 	{
 		try
 		{
-			this.socket = new DatagramSocket(PORT_NUM);
+			this.socket = openSocket();
+			this.transport = socket::send;
+			ParallelSender parallel = ParallelSender.configured(transport, metrics.sendsLate);
+			if (parallel != null)
+			{
+				this.transport = parallel;
+			}
 			this.localIpList = populateLocalAddresses();
 		} catch (SocketException e)
 		{
 			e.printStackTrace();
 		}
+		this.receiveBytes = new byte[AvailabilityPacket.MAX_RECEIVE_SIZE];
+		this.receivePacket = new DatagramPacket(receiveBytes, receiveBytes.length);
+		this.receiveBuffer = ByteBuffer.wrap(receiveBytes);
+		restore();
+		peers.watch();
+		reporter.start("p2p-reporter");
+		metrics.export();
+		MembershipEndpoint.configured(membership);
 
 		new Thread(() ->
 		{
 			while (true)
 			{
 				listenPacket();
-				outputIps();
 			}
 		}).start();
 
-		new Thread(() ->
-		{
-			Instant nextBeat = Instant.now();
+		start();
+		scheduler.start("p2p-scheduler");
+	}
 
-			while (true)
+	/**
+	 * Reloads the table we had before a restart, if one was kept. Peers that
+	 * were online are on probation: they stay out of the table, so nobody
+	 * hears them reported online from us, and are failed if nothing is heard
+	 * of them within NODE_OFFLINE. Since the others still count them online,
+	 * the ones that are still up come back without a NEW alert.
+	 */
+	private void restore()
+	{
+		if (store == null)
+		{
+			return;
+		}
+		long start = System.nanoTime();
+		int restored = store.restore((address, status) ->
+		{
+			if (status == PacketStatus.ONLINE)
 			{
-				if (Duration.between(Instant.now(), nextBeat).isNegative())
-				{
-					int randSec = random.nextInt(30) + 1;
-					nextBeat = Instant.now().plusSeconds(randSec);
-					sendPacket(new AvailabilityPacket(getAllPackets(), true));
-				} else
-				{
-					pruneNodes();
-				}
+				restoring.add(address);
+				deadlines.schedule(address, start + TimeUnit.SECONDS.toNanos(NODE_OFFLINE));
+			} else
+			{
+				membership.markOffline(address);
 			}
+		});
+		store.start("p2p-store");
+		reporter.report("Restored " + restored + " nodes in "
+				+ TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+	}
 
-		}).start();
+	/**
+	 * Schedules heartbeating and pruning.
+	 */
+	public void start()
+	{
+		if (GOSSIP_MODE)
+		{
+			heartbeatTask = scheduler.scheduleRepeating(this::gossipRound, GOSSIP_INTERVAL_MS, TimeUnit.MILLISECONDS);
+		} else
+		{
+			heartbeatTask = scheduler.scheduleJittered(this::sendHeartbeat, 1, 30);
+		}
+		pruneTask = scheduler.scheduleRepeating(this::pruneNodes, WHEEL_TICK_MS, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stops heartbeating and pruning, as if the node had crashed.
+	 */
+	public void stop()
+	{
+		if (heartbeatTask != null)
+		{
+			heartbeatTask.cancel();
+			pruneTask.cancel();
+		}
+	}
+
+	/**
+	 * @return This node's counters and histograms.
+	 */
+	public Metrics metrics()
+	{
+		return metrics;
+	}
+
+	/**
+	 * @return This node's view of the cluster.
+	 */
+	public MembershipTable membership()
+	{
+		return membership;
+	}
+
+	/**
+	 * @return Membership changes, for listeners to subscribe to.
+	 */
+	public MembershipEvents events()
+	{
+		return events;
 	}
 }
@@ -1,6 +1,10 @@
 public enum PacketStatus
 {
-	OFFLINE(0), ONLINE(1), NEW(2), FAIL(3), REVIVE(4);
+	OFFLINE(0), ONLINE(1), NEW(2), FAIL(3), REVIVE(4),
+	// Indirect probing, see IndirectProber. Nodes that predate these codes
+	// fail on them, so they are only sent to nodes whose packets carry the
+	// probes flag.
+	PING_REQ(5), PING(6), ACK(7);
 
 	private int statusCode;
 
@@ -0,0 +1,490 @@
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Team Rusty Buckets
+ * High Availability Cluster: Project 1
+ * Cameron Moberg, Eli Charleville, Evan Gauer
+ */
+
+/**
+ * Encodes a versioned message that may not fit one datagram, such as the
+ * snapshot of a large table, as a run of pages no bigger than
+ * AvailabilityPacket.MAX_PACKET_SIZE. Pages come from a BufferPool and are
+ * kept until the next begin or reset, so the same pages can be sent to
+ * every peer that needs them.
+ *
+ * Messages begun with beginPlain are plain packets instead, for nodes that
+ * predate the versions, no bigger than
+ * AvailabilityPacket.MAX_PLAIN_PACKET_SIZE.
+ *
+ * Messages begun with beginCompact are in version 3. Their entries are
+ * held until finish, which sorts them so neighbouring addresses share
+ * prefixes, and sends roster nodes as a roster section when that is
+ * smaller.
+ */
+public class PagedPacketWriter
+{
+	private static final PacketStatus[] STATUSES = PacketStatus.values();
+	// Format of beginPlain messages; the others are their version.
+	private static final int PLAIN = 0;
+
+	private final BufferPool pool;
+	private final List<ByteBuffer> pages = new ArrayList<>();
+	private ByteBuffer current;
+	private int baseVersion;
+	private int tableVersion;
+	private int ackVersion;
+	private boolean heartbeat;
+	private int format;
+	// Roster set by setRoster: its id, each address's index, and the code
+	// of every roster node put in the current message.
+	private InetSocketAddress[] roster;
+	private int rosterId;
+	private Map<InetAddress, Integer> rosterIndex;
+	private byte[] rosterCodes;
+	private boolean useRoster;
+	private int rosterFirst;
+	private int rosterLast;
+	private int rosterCount;
+	// Other entries of a version 3 message: IPv4 as address << 3 | status,
+	// so they sort as longs, and IPv6 as they came.
+	private long[] v4 = new long[64];
+	private int v4Count;
+	private byte[][] v6 = new byte[16][];
+	private PacketStatus[] v6Statuses = new PacketStatus[16];
+	private int v6Count;
+	private final byte[] previous = new byte[16];
+	private final byte[] scratch = new byte[4];
+	// Version 3 entries added by putIfRoom once the held ones are written.
+	private boolean heldWritten;
+	private int extraRun = -1;
+	private int extraLength;
+	private int extraCount;
+
+	/**
+	 * @param pool Pool of AvailabilityPacket.MAX_PACKET_SIZE buffers.
+	 */
+	public PagedPacketWriter(BufferPool pool)
+	{
+		this.pool = pool;
+	}
+
+	/**
+	 * Releases any previous pages and starts the first page of a message.
+	 *
+	 * @param baseVersion  Version the entries start from, 0 for a snapshot.
+	 * @param tableVersion Version of our table after the entries.
+	 * @param ackVersion   Version of the receiver's table we have applied.
+	 * @param heartbeat    Whether the pages also count as a heartbeat.
+	 */
+	public void begin(int baseVersion, int tableVersion, int ackVersion, boolean heartbeat)
+	{
+		begin(baseVersion, tableVersion, ackVersion, heartbeat, AvailabilityPacket.VERSIONED_VERSION, false);
+	}
+
+	/**
+	 * Releases any previous pages and starts a message of plain packets, for
+	 * a receiver that has never told us it reads versioned ones. They carry
+	 * no versions, so should hold the whole table.
+	 *
+	 * @param heartbeat Whether the pages also count as a heartbeat.
+	 */
+	public void beginPlain(boolean heartbeat)
+	{
+		begin(0, 0, 0, heartbeat, PLAIN, false);
+	}
+
+	/**
+	 * Releases any previous pages and starts a version 3 message, for a
+	 * receiver that has told us it reads them.
+	 *
+	 * @param baseVersion  Version the entries start from, 0 for a snapshot.
+	 * @param tableVersion Version of our table after the entries.
+	 * @param ackVersion   Version of the receiver's table we have applied.
+	 * @param heartbeat    Whether the pages also count as a heartbeat.
+	 * @param useRoster    Whether the receiver has loaded the same roster,
+	 *                     so roster nodes can be sent as a roster section.
+	 */
+	public void beginCompact(int baseVersion, int tableVersion, int ackVersion, boolean heartbeat,
+			boolean useRoster)
+	{
+		begin(baseVersion, tableVersion, ackVersion, heartbeat, AvailabilityPacket.COMPACT_VERSION,
+				useRoster && roster != null);
+	}
+
+	private void begin(int baseVersion, int tableVersion, int ackVersion, boolean heartbeat, int format,
+			boolean useRoster)
+	{
+		reset();
+		this.baseVersion = baseVersion;
+		this.tableVersion = tableVersion;
+		this.ackVersion = ackVersion;
+		this.heartbeat = heartbeat;
+		this.format = format;
+		this.useRoster = useRoster;
+		this.heldWritten = false;
+		this.extraRun = -1;
+		startPage();
+	}
+
+	/**
+	 * Sets the roster, the nodes of our ips file, whose id goes in the
+	 * header of version 3 pages. Does nothing if roster is the one already
+	 * set.
+	 *
+	 * @param roster Nodes in the order of the file; not copied, must not be
+	 *               modified.
+	 */
+	public void setRoster(InetSocketAddress[] roster)
+	{
+		if (roster == this.roster)
+		{
+			return;
+		}
+		Map<InetAddress, Integer> index = new HashMap<>();
+		for (int i = 0; i < roster.length; i++)
+		{
+			index.putIfAbsent(roster[i].getAddress(), i);
+		}
+		this.roster = roster;
+		this.rosterId = AvailabilityPacket.rosterId(roster);
+		this.rosterIndex = index;
+		this.rosterCodes = new byte[roster.length];
+	}
+
+	/**
+	 * @return Id of the roster set by setRoster, 0 if none.
+	 */
+	public int rosterId()
+	{
+		return rosterId;
+	}
+
+	/**
+	 * Adds an entry, moving on to a new page if it won't fit on this one.
+	 *
+	 * @param address Address to encode.
+	 * @param status  Status of address.
+	 */
+	public void put(InetAddress address, PacketStatus status)
+	{
+		if (format == AvailabilityPacket.COMPACT_VERSION)
+		{
+			hold(address, status);
+			return;
+		}
+		if (current.remaining() < AvailabilityPacket.entrySize(address))
+		{
+			nextPage();
+		}
+		AvailabilityPacket.putEntry(current, address, status);
+	}
+
+	/**
+	 * Adds an entry to the last page only if it fits there, for extras that
+	 * should never cost a datagram of their own. Must come after every put.
+	 *
+	 * @param address Address to encode.
+	 * @param status  Status of address.
+	 * @return false, adding nothing, if the page is full.
+	 */
+	public boolean putIfRoom(InetAddress address, PacketStatus status)
+	{
+		if (format != AvailabilityPacket.COMPACT_VERSION)
+		{
+			if (current.remaining() < AvailabilityPacket.entrySize(address))
+			{
+				return false;
+			}
+			AvailabilityPacket.putEntry(current, address, status);
+			return true;
+		}
+
+		if (!heldWritten)
+		{
+			writeHeld();
+			heldWritten = true;
+		}
+		byte[] bytes = address.getAddress();
+		boolean newRun = extraRun < 0 || extraLength != bytes.length || extraCount == 255;
+		int needed = AvailabilityPacket.compactEntrySize(bytes.length)
+				+ (newRun ? AvailabilityPacket.RUN_HEADER_SIZE : 0);
+		if (current.remaining() < needed)
+		{
+			return false;
+		}
+		if (newRun)
+		{
+			if (extraRun >= 0)
+			{
+				AvailabilityPacket.endRun(current, extraRun, extraCount);
+			}
+			Arrays.fill(previous, (byte) 0);
+			extraRun = AvailabilityPacket.putRun(current, bytes.length);
+			extraLength = bytes.length;
+			extraCount = 0;
+		}
+		AvailabilityPacket.putCompactEntry(current, previous, bytes, status);
+		extraCount++;
+		return true;
+	}
+
+	/**
+	 * Marks the current page as the last one and closes the message.
+	 */
+	public void finish()
+	{
+		if (format == AvailabilityPacket.COMPACT_VERSION && !heldWritten)
+		{
+			writeHeld();
+		} else if (extraRun >= 0)
+		{
+			AvailabilityPacket.endRun(current, extraRun, extraCount);
+			extraRun = -1;
+		}
+		if (format != PLAIN)
+		{
+			AvailabilityPacket.markLastPage(current);
+		}
+		AvailabilityPacket.finish(current, heartbeat);
+		pages.add(current);
+		current = null;
+	}
+
+	public int pageCount()
+	{
+		return pages.size();
+	}
+
+	/**
+	 * @param index Page to get, from 0 to pageCount() - 1.
+	 * @return The page, positioned at its start and ready to send.
+	 */
+	public ByteBuffer page(int index)
+	{
+		ByteBuffer page = pages.get(index);
+		page.rewind();
+		return page;
+	}
+
+	/**
+	 * Returns every page to the pool.
+	 */
+	public void reset()
+	{
+		for (ByteBuffer page : pages)
+		{
+			pool.release(page);
+		}
+		pages.clear();
+		if (current != null)
+		{
+			pool.release(current);
+			current = null;
+		}
+		if (rosterCount > 0)
+		{
+			Arrays.fill(rosterCodes, rosterFirst, rosterLast + 1, (byte) 0);
+			rosterCount = 0;
+		}
+		Arrays.fill(v6, 0, v6Count, null);
+		v4Count = 0;
+		v6Count = 0;
+	}
+
+	private void startPage()
+	{
+		current = pool.acquire();
+		if (format == PLAIN)
+		{
+			AvailabilityPacket.begin(current);
+			current.limit(AvailabilityPacket.MAX_PLAIN_PACKET_SIZE);
+			return;
+		}
+		AvailabilityPacket.begin(current, baseVersion, tableVersion, ackVersion, pages.size(), format,
+				format == AvailabilityPacket.COMPACT_VERSION ? rosterId : 0);
+	}
+
+	private void nextPage()
+	{
+		AvailabilityPacket.finish(current, heartbeat);
+		pages.add(current);
+		startPage();
+	}
+
+	/**
+	 * Keeps an entry of a version 3 message for finish.
+	 */
+	private void hold(InetAddress address, PacketStatus status)
+	{
+		if (useRoster && (status == PacketStatus.ONLINE || status == PacketStatus.OFFLINE))
+		{
+			Integer index = rosterIndex.get(address);
+			if (index != null)
+			{
+				holdRoster(index, status == PacketStatus.ONLINE ? AvailabilityPacket.ROSTER_ONLINE
+						: AvailabilityPacket.ROSTER_OFFLINE);
+				return;
+			}
+		}
+		holdAddress(address.getAddress(), status);
+	}
+
+	private void holdRoster(int index, int code)
+	{
+		if (rosterCount == 0)
+		{
+			rosterFirst = index;
+			rosterLast = index;
+		}
+		if (rosterCodes[index] == 0)
+		{
+			rosterCount++;
+		}
+		rosterCodes[index] = (byte) code;
+		rosterFirst = Math.min(rosterFirst, index);
+		rosterLast = Math.max(rosterLast, index);
+	}
+
+	private void holdAddress(byte[] address, PacketStatus status)
+	{
+		if (address.length == 4)
+		{
+			if (v4Count == v4.length)
+			{
+				v4 = Arrays.copyOf(v4, v4Count * 2);
+			}
+			long bits = ((address[0] & 0xFFL) << 24) | ((address[1] & 0xFF) << 16) | ((address[2] & 0xFF) << 8)
+					| (address[3] & 0xFF);
+			v4[v4Count++] = bits << 3 | status.getStatusCode();
+		} else
+		{
+			if (v6Count == v6.length)
+			{
+				v6 = Arrays.copyOf(v6, v6Count * 2);
+				v6Statuses = Arrays.copyOf(v6Statuses, v6Count * 2);
+			}
+			v6[v6Count] = address;
+			v6Statuses[v6Count++] = status;
+		}
+	}
+
+	/**
+	 * Writes the held entries of a version 3 message: roster nodes as roster
+	 * sections if that is smaller than the 2 bytes or so each would take as
+	 * an entry, then the rest as sorted runs.
+	 */
+	private void writeHeld()
+	{
+		if (rosterCount > 0)
+		{
+			if (AvailabilityPacket.rosterSize(rosterLast - rosterFirst + 1) < 2 * rosterCount)
+			{
+				writeRoster();
+			} else
+			{
+				for (int i = rosterFirst; i <= rosterLast; i++)
+				{
+					if (rosterCodes[i] != 0)
+					{
+						holdAddress(roster[i].getAddress().getAddress(),
+								rosterCodes[i] == AvailabilityPacket.ROSTER_ONLINE ? PacketStatus.ONLINE
+										: PacketStatus.OFFLINE);
+					}
+				}
+			}
+		}
+
+		Arrays.sort(v4, 0, v4Count);
+		int run = -1;
+		int inRun = 0;
+		for (int i = 0; i < v4Count; i++)
+		{
+			if (run < 0 || inRun == 255 || current.remaining() < AvailabilityPacket.compactEntrySize(4))
+			{
+				run = startRun(run, inRun, 4);
+				inRun = 0;
+			}
+			long bits = v4[i] >>> 3;
+			scratch[0] = (byte) (bits >>> 24);
+			scratch[1] = (byte) (bits >>> 16);
+			scratch[2] = (byte) (bits >>> 8);
+			scratch[3] = (byte) bits;
+			AvailabilityPacket.putCompactEntry(current, previous, scratch, STATUSES[(int) (v4[i] & 7)]);
+			inRun++;
+		}
+		if (run >= 0)
+		{
+			AvailabilityPacket.endRun(current, run, inRun);
+		}
+
+		// Sort the indexes, IPv6 tables are rare enough not to bother with more.
+		Integer[] order = new Integer[v6Count];
+		for (int i = 0; i < v6Count; i++)
+		{
+			order[i] = i;
+		}
+		Arrays.sort(order, (a, b) -> Arrays.compareUnsigned(v6[a], v6[b]));
+		run = -1;
+		inRun = 0;
+		for (int i : order)
+		{
+			if (run < 0 || inRun == 255 || current.remaining() < AvailabilityPacket.compactEntrySize(16))
+			{
+				run = startRun(run, inRun, 16);
+				inRun = 0;
+			}
+			AvailabilityPacket.putCompactEntry(current, previous, v6[i], v6Statuses[i]);
+			inRun++;
+		}
+		if (run >= 0)
+		{
+			AvailabilityPacket.endRun(current, run, inRun);
+		}
+	}
+
+	/**
+	 * Ends the current run, if any, and starts another, on a new page if
+	 * this one can't fit its first entry.
+	 *
+	 * @return Where the new run's count goes.
+	 */
+	private int startRun(int run, int inRun, int addressLength)
+	{
+		if (run >= 0)
+		{
+			AvailabilityPacket.endRun(current, run, inRun);
+		}
+		if (current.remaining() < AvailabilityPacket.RUN_HEADER_SIZE
+				+ AvailabilityPacket.compactEntrySize(addressLength))
+		{
+			nextPage();
+		}
+		Arrays.fill(previous, (byte) 0);
+		return AvailabilityPacket.putRun(current, addressLength);
+	}
+
+	private void writeRoster()
+	{
+		int i = rosterFirst;
+		while (i <= rosterLast)
+		{
+			int room = (current.remaining() - AvailabilityPacket.ROSTER_HEADER_SIZE) * 4;
+			if (room < 4)
+			{
+				nextPage();
+				continue;
+			}
+			int count = Math.min(Math.min(room, rosterLast - i + 1), 0xFFFF);
+			AvailabilityPacket.putRoster(current, rosterId, rosterCodes, i, count);
+			i += count;
+		}
+	}
+}
@@ -0,0 +1,152 @@
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.net.DatagramPacket;
+import java.net.SocketAddress;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Team Rusty Buckets
+ * High Availability Cluster: Project 1
+ * Cameron Moberg, Eli Charleville, Evan Gauer
+ */
+
+/**
+ * Transport that hands each datagram to one of several workers, so a send
+ * that stalls or fails only holds up that worker rather than every peer
+ * after it in the round. Turned on with -Dhac.send.parallel=true. hac.send.threads workers,
+ * virtual threads where the JVM has them (21 and up) and daemon threads
+ * otherwise, take sends from a queue, so at most that many are in flight
+ * at once.
+ *
+ * Queuing never blocks the caller, so the scheduler thread never waits on
+ * a stalled peer. A send still queued hac.send.deadline milliseconds
+ * (1000), about a round, after it was made is dropped as late, since the
+ * next round's heartbeat supersedes it. So is one that finds
+ * hac.send.queue sends (16384) already waiting, which only happens when
+ * the workers are stuck.
+ */
+public class ParallelSender implements Transport
+{
+	private static boolean ENABLED = Boolean.getBoolean("hac.send.parallel");
+	private static int MAX_IN_FLIGHT = Integer.getInteger("hac.send.threads", 64);
+	private static int DEADLINE_MS = Integer.getInteger("hac.send.deadline", 1000);
+	private static int QUEUE_CAPACITY = Integer.getInteger("hac.send.queue", 16384);
+
+	private final Transport transport;
+	private final BlockingQueue<Send> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+	private final long deadline = TimeUnit.MILLISECONDS.toNanos(DEADLINE_MS);
+	private final LongAdder late;
+
+	private ParallelSender(Transport transport, ExecutorService executor, LongAdder late)
+	{
+		this.transport = transport;
+		this.late = late;
+		for (int i = 0; i < MAX_IN_FLIGHT; i++)
+		{
+			executor.execute(this::drain);
+		}
+	}
+
+	/**
+	 * @param transport Where each send finally goes; must be safe to call
+	 *                  from several threads at once, as DatagramSocket is.
+	 * @param late      Counts sends dropped for missing their deadline.
+	 * @return A parallel sender over transport, or null if the mode is off.
+	 */
+	public static ParallelSender configured(Transport transport, LongAdder late)
+	{
+		if (!ENABLED)
+		{
+			return null;
+		}
+		return new ParallelSender(transport, newExecutor(), late);
+	}
+
+	/**
+	 * Virtual threads are looked up reflectively so this still builds and
+	 * runs on 17.
+	 */
+	private static ExecutorService newExecutor()
+	{
+		try
+		{
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e)
+		{
+			AtomicInteger count = new AtomicInteger();
+			ThreadFactory factory = task ->
+			{
+				Thread thread = new Thread(task, "parallel-sender-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			};
+			return Executors.newFixedThreadPool(MAX_IN_FLIGHT, factory);
+		}
+	}
+
+	/**
+	 * Copies packet and queues it to be sent by the next free worker.
+	 */
+	@Override
+	public void send(DatagramPacket packet)
+	{
+		byte[] data = Arrays.copyOfRange(packet.getData(), packet.getOffset(),
+				packet.getOffset() + packet.getLength());
+		if (!queue.offer(new Send(data, packet.getSocketAddress(), System.nanoTime() + deadline)))
+		{
+			late.increment();
+		}
+	}
+
+	/**
+	 * A worker: sends whatever is queued, in order, for good.
+	 */
+	private void drain()
+	{
+		while (true)
+		{
+			Send next;
+			try
+			{
+				next = queue.take();
+			} catch (InterruptedException e)
+			{
+				return;
+			}
+			if (System.nanoTime() - next.due > 0)
+			{
+				late.increment();
+				continue;
+			}
+			try
+			{
+				transport.send(new DatagramPacket(next.data, next.data.length, next.target));
+			} catch (IOException e)
+			{
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private static class Send
+	{
+		private final byte[] data;
+		private final SocketAddress target;
+		private final long due;
+
+		private Send(byte[] data, SocketAddress target, long due)
+		{
+			this.data = data;
+			this.target = target;
+			this.due = due;
+		}
+	}
+}
@@ -0,0 +1,226 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Team Rusty Buckets
+ * High Availability Cluster: Project 1
+ * Cameron Moberg, Eli Charleville, Evan Gauer
+ */
+
+/**
+ * Addresses read from a file of xxx.xxx.xxx.xxx:xxxx lines, such as ips or
+ * masterIp, parsed and resolved once up front so sending needs no string
+ * splitting or DNS lookups. Once watched, the file is read again whenever
+ * it changes and the new addresses replace the old in one step, so peers
+ * can be added or removed without a restart. Bursts of changes, as an editor
+ * writing the file in pieces makes, are read once they have been quiet for
+ * hac.peers.debounce milliseconds (200). A file that can't be read or
+ * has no addresses keeps the previous list.
+ */
+public class PeerList
+{
+	private static int DEBOUNCE_MS = Integer.getInteger("hac.peers.debounce", 200);
+
+	private final Path file;
+	private volatile InetSocketAddress[] peers;
+
+	/**
+	 * Reads and resolves file.
+	 *
+	 * @param fileName File to read, relative to the working directory.
+	 */
+	public PeerList(String fileName)
+	{
+		this.file = Paths.get(fileName).toAbsolutePath();
+		InetSocketAddress[] read = read(file);
+		this.peers = read == null ? new InetSocketAddress[0] : read;
+	}
+
+	/**
+	 * Fixed list with no file behind it, such as the simulator's.
+	 *
+	 * @param peers Addresses, not copied, which must not be modified.
+	 */
+	public PeerList(InetSocketAddress[] peers)
+	{
+		this.file = null;
+		this.peers = peers;
+	}
+
+	/**
+	 * @return The current addresses. Never modified, a reload swaps in a new
+	 * array, so callers can hold on to it for a whole send round.
+	 */
+	public InetSocketAddress[] peers()
+	{
+		return peers;
+	}
+
+	public int size()
+	{
+		return peers.length;
+	}
+
+	/**
+	 * @return The first address, or null if the file has none.
+	 */
+	public InetSocketAddress first()
+	{
+		InetSocketAddress[] current = peers;
+		return current.length == 0 ? null : current[0];
+	}
+
+	/**
+	 * Starts a daemon thread that reloads the file whenever it is written,
+	 * or replaced as editors tend to do. Does nothing for a fixed list.
+	 */
+	public void watch()
+	{
+		if (file == null)
+		{
+			return;
+		}
+
+		WatchService watcher;
+		try
+		{
+			watcher = FileSystems.getDefault().newWatchService();
+			file.getParent().register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+					StandardWatchEventKinds.ENTRY_MODIFY);
+		} catch (IOException e)
+		{
+			e.printStackTrace();
+			return;
+		}
+
+		Thread thread = new Thread(() -> watchLoop(watcher), "peer-list-" + file.getFileName());
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private void watchLoop(WatchService watcher)
+	{
+		while (true)
+		{
+			WatchKey key;
+			try
+			{
+				key = watcher.take();
+			} catch (InterruptedException e)
+			{
+				return;
+			}
+
+			boolean changed = false;
+			while (key != null)
+			{
+				changed |= touchesFile(key);
+				if (!key.reset())
+				{
+					return;
+				}
+				try
+				{
+					key = watcher.poll(DEBOUNCE_MS, TimeUnit.MILLISECONDS);
+				} catch (InterruptedException e)
+				{
+					return;
+				}
+			}
+			if (changed)
+			{
+				reload();
+			}
+		}
+	}
+
+	private boolean touchesFile(WatchKey key)
+	{
+		boolean touched = false;
+		for (WatchEvent<?> event : key.pollEvents())
+		{
+			if (file.getFileName().equals(event.context()))
+			{
+				touched = true;
+			}
+		}
+		return touched;
+	}
+
+	private void reload()
+	{
+		InetSocketAddress[] read = read(file);
+		if (read == null || read.length == 0)
+		{
+			System.out.println("Kept " + peers.length + " addresses, " + file.getFileName()
+					+ " could not be read or had none");
+			return;
+		}
+		peers = read;
+		System.out.println("Reloaded " + file.getFileName() + ": " + peers.length + " addresses");
+	}
+
+	/**
+	 * @return The file's addresses, or null if it could not be read.
+	 */
+	private static InetSocketAddress[] read(Path file)
+	{
+		List<InetSocketAddress> parsed = new ArrayList<>();
+		try
+		{
+			for (String line : Files.readAllLines(file))
+			{
+				InetSocketAddress address = parse(line.trim());
+				if (address != null)
+				{
+					parsed.add(address);
+				}
+			}
+		} catch (IOException e)
+		{
+			e.printStackTrace();
+			return null;
+		}
+		return parsed.toArray(new InetSocketAddress[0]);
+	}
+
+	/**
+	 * @param line Address formatted like xxx.xxx.xxx.xxx:8888
+	 * @return The resolved address, or null if line is blank or bad.
+	 */
+	private static InetSocketAddress parse(String line)
+	{
+		int colon = line.lastIndexOf(':');
+		if (colon <= 0)
+		{
+			return null;
+		}
+
+		try
+		{
+			InetSocketAddress address = new InetSocketAddress(line.substring(0, colon),
+					Integer.parseInt(line.substring(colon + 1)));
+			if (address.isUnresolved())
+			{
+				System.out.println("Could not resolve " + line);
+				return null;
+			}
+			return address;
+		} catch (IllegalArgumentException e)
+		{
+			e.printStackTrace();
+			return null;
+		}
+	}
+}
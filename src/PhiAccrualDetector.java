@@ -0,0 +1,180 @@
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Team Rusty Buckets
+ * High Availability Cluster: Project 1
+ * Cameron Moberg, Eli Charleville, Evan Gauer
+ */
+
+/**
+ * Phi accrual failure detector for one node (Hayashibara et al.). Learns
+ * the distribution of the node's heartbeat inter-arrival times over a
+ * sliding window and reports suspicion as phi = -log10(P(a heartbeat
+ * arrives later than now)). A phi of 8 means the chance the node is still
+ * alive and just late is about 1 in 10^8, so a node that heartbeats every
+ * second is suspected within seconds while one that heartbeats every 30
+ * seconds is given the time it needs.
+ */
+public class PhiAccrualDetector
+{
+	private static final int WINDOW = 100;
+	private static final double MIN_STD_DEV_MS = 500;
+
+	private final double threshold;
+	private final long maxSilence;
+	// Grows to WINDOW as samples come in, so rarely heard nodes stay small.
+	private long[] intervals = new long[8];
+	private int count;
+	private int next;
+	private double sum;
+	private double sumOfSquares;
+	private long lastHeartbeat;
+	private long suspectAfter;
+
+	/**
+	 * @param threshold       Phi at which the node is considered failed.
+	 * @param firstEstimateMs Expected heartbeat interval before any have been
+	 *                        seen; used to seed the window.
+	 * @param maxSilenceMs    Silence after which the node is suspected whatever
+	 *                        phi says, so detection is never slower than a
+	 *                        fixed timeout of this length.
+	 * @param nowNanos        Time of the first heartbeat, from System.nanoTime.
+	 */
+	public PhiAccrualDetector(double threshold, long firstEstimateMs, long maxSilenceMs, long nowNanos)
+	{
+		this.threshold = threshold;
+		this.maxSilence = TimeUnit.MILLISECONDS.toNanos(maxSilenceMs);
+		this.lastHeartbeat = nowNanos;
+		long stdDev = firstEstimateMs / 4;
+		record(TimeUnit.MILLISECONDS.toNanos(firstEstimateMs - stdDev));
+		record(TimeUnit.MILLISECONDS.toNanos(firstEstimateMs + stdDev));
+		this.suspectAfter = solveSuspectAfter();
+	}
+
+	/**
+	 * Records a heartbeat from the node.
+	 *
+	 * @param nowNanos Arrival time, from System.nanoTime.
+	 */
+	public synchronized void heartbeat(long nowNanos)
+	{
+		// The seed stays in the window until real intervals push it out; one
+		// short first interval on its own would make every later one look late.
+		record(nowNanos - lastHeartbeat);
+		lastHeartbeat = nowNanos;
+		suspectAfter = solveSuspectAfter();
+	}
+
+	/**
+	 * @param nowNanos Current time, from System.nanoTime.
+	 * @return Current suspicion level of the node.
+	 */
+	public synchronized double phi(long nowNanos)
+	{
+		return phiAt(TimeUnit.NANOSECONDS.toMillis(nowNanos - lastHeartbeat));
+	}
+
+	/**
+	 * @param nowNanos Current time, from System.nanoTime.
+	 * @return Whether phi has reached the threshold, or the node has been
+	 * silent for longer than maxSilenceMs.
+	 */
+	public synchronized boolean isSuspect(long nowNanos)
+	{
+		return nowNanos - lastHeartbeat >= suspectAfter;
+	}
+
+	/**
+	 * @param nowNanos Current time, from System.nanoTime.
+	 * @return Nanoseconds until phi reaches the threshold if no heartbeat
+	 * arrives, 0 if it already has.
+	 */
+	public synchronized long nanosUntilSuspect(long nowNanos)
+	{
+		return Math.max(0, lastHeartbeat + suspectAfter - nowNanos);
+	}
+
+	public synchronized long lastHeartbeatNanos()
+	{
+		return lastHeartbeat;
+	}
+
+	private void record(long interval)
+	{
+		if (count == intervals.length && count < WINDOW)
+		{
+			// Not wrapped yet, so the samples are in order from 0.
+			intervals = Arrays.copyOf(intervals, Math.min(WINDOW, count * 2));
+			next = count;
+		}
+		if (count == WINDOW)
+		{
+			long old = intervals[next];
+			sum -= old;
+			sumOfSquares -= (double) old * old;
+		} else
+		{
+			count++;
+		}
+		intervals[next] = interval;
+		next = (next + 1) % intervals.length;
+		sum += interval;
+		sumOfSquares += (double) interval * interval;
+	}
+
+	private double meanMs()
+	{
+		return sum / count / 1e6;
+	}
+
+	private double stdDevMs()
+	{
+		double mean = sum / count;
+		double variance = Math.max(0, sumOfSquares / count - mean * mean);
+		return Math.max(MIN_STD_DEV_MS, Math.sqrt(variance) / 1e6);
+	}
+
+	/**
+	 * Logistic approximation of the normal CDF, as used by Akka and
+	 * Cassandra, which avoids erf and stays finite far into the tail.
+	 */
+	private double phiAt(double elapsedMs)
+	{
+		double mean = meanMs();
+		double y = (elapsedMs - mean) / stdDevMs();
+		double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+		if (elapsedMs > mean)
+		{
+			return -Math.log10(e / (1.0 + e));
+		}
+		return -Math.log10(1.0 - 1.0 / (1.0 + e));
+	}
+
+	/**
+	 * phi only changes shape on a heartbeat, so the silence at which it
+	 * crosses the threshold is found once here by bisection instead of
+	 * evaluating phi for every node on every check.
+	 */
+	private long solveSuspectAfter()
+	{
+		double low = 0;
+		double high = meanMs() + stdDevMs();
+		while (phiAt(high) < threshold)
+		{
+			high *= 2;
+		}
+		for (int i = 0; i < 40; i++)
+		{
+			double mid = (low + high) / 2;
+			if (phiAt(mid) < threshold)
+			{
+				low = mid;
+			} else
+			{
+				high = mid;
+			}
+		}
+		return Math.min(maxSilence, TimeUnit.MICROSECONDS.toNanos((long) (high * 1000)));
+	}
+}
@@ -1,54 +1,576 @@
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
 import java.net.SocketException;
-import java.net.SocketTimeoutException;
-import java.time.Duration;
-import java.time.Instant;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Enumeration;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
 import java.util.Random;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 public class Server
 {
 	private static int PORT_NUM = 9999;
 	private static int NODE_TIMEOUT = 31;
+	private static double PHI_THRESHOLD = Double.parseDouble(System.getProperty("hac.phi.threshold", "8"));
+	// Clients heartbeat every 1-30 seconds.
+	private static int FIRST_HEARTBEAT_ESTIMATE_MS = 15500;
+	private static int MAX_DATAGRAMS_PER_WAKEUP = 4096;
+	private static int RECEIVE_BUFFER_BYTES = 4 * 1024 * 1024;
+	private static int LOG_CAPACITY = 1024;
+	private static int POOL_CAPACITY = 64;
+	// Clients listen on 6969, so that's where the group is sent to.
+	private static int MULTICAST_PORT = Integer.getInteger("hac.multicast.port", 6969);
+	// Node deadlines are checked to within a tick; 512 ticks cover NODE_TIMEOUT.
+	private static int WHEEL_TICK_MS = 100;
+	private static int WHEEL_SIZE = 512;
+	// File listing every shard of a sharded master, unset for a single master.
+	private static String SHARDS_FILE = System.getProperty("hac.shards");
+	private static int SHARD_SUMMARY_INTERVAL_MS = Integer.getInteger("hac.shard.interval", 1000);
+	// File listing the masters in order of seniority, unset for a lone master.
+	private static String MASTERS_FILE = System.getProperty("hac.masters");
+	private static int REPLICATION_INTERVAL_MS = Integer.getInteger("hac.replication.interval", 200);
+	private static int TAKEOVER_MS = Integer.getInteger("hac.takeover", 2000);
+	private static int LOAD_REFRESH_MS = Integer.getInteger("hac.load.refresh", 100);
+	// Version 3 heartbeats to clients that read them; false sends only version 2.
+	private static boolean COMPACT = Boolean.parseBoolean(System.getProperty("hac.wire.compact", "true"));
 
-	private DatagramSocket socket = null;
-	private Random random = new Random();
+	private DatagramChannel channel = null;
+	private Selector selector = null;
+	private SelectionKey key = null;
+	private HeartbeatScheduler scheduler = new HeartbeatScheduler();
 
-	private Map<InetAddress, Instant> onlineIpMap = new ConcurrentHashMap<>();
-	private List<InetAddress> offlineIpList = new ArrayList<>();
+	private ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(AvailabilityPacket.MAX_RECEIVE_SIZE);
+	private BufferPool bufferPool = new BufferPool(POOL_CAPACITY, AvailabilityPacket.MAX_PACKET_SIZE, true);
+	private PagedPacketWriter heartbeatWriter = new PagedPacketWriter(bufferPool);
+	private ArrayDeque<Outbound> pendingSends = new ArrayDeque<>();
+	private AvailabilityPacket.Reader reader = new AvailabilityPacket.Reader();
+	private AddressInterner interner = new AddressInterner();
 
-	private String[] ips = readIps();
+	private MembershipTable membership = new MembershipTable();
+	private MembershipEvents events = new MembershipEvents();
+	private StatusReporter reporter = new StatusReporter(membership);
+	private Metrics metrics = new Metrics("server", membership);
+	private MembershipStore store = MembershipStore.configured("server", membership);
+	// Clients that were online before a restart and haven't been heard from
+	// since. They are left out of the table until they are.
+	private Set<InetAddress> restoring = new HashSet<>();
+	private MembershipLog membershipLog = new MembershipLog(LOG_CAPACITY);
+	// Set in piggyback mode, where alerts ride on heartbeats.
+	private DisseminationBuffer piggyback = DisseminationBuffer.configured();
+	private LoadBalancer loads = new LoadBalancer(membership);
+	private IndirectProber prober = new IndirectProber(this::sendTo, this::clientAddress, this::probeAcked,
+			new Random());
+	private TimingWheel<InetAddress> deadlines = new TimingWheel<>(
+			TimeUnit.MILLISECONDS.toNanos(WHEEL_TICK_MS), WHEEL_SIZE, System.nanoTime());
+
+	private PeerList peers = new PeerList("ips");
+	private MulticastGroup multicast = MulticastGroup.configured(MULTICAST_PORT);
+
+	// Sharded mode. Each shard watches the clients the ring gives it and
+	// sends the other shards the changes to those in shardLog, so every
+	// shard still has, and publishes, the whole table.
+	private PeerList shards = SHARDS_FILE == null ? null : new PeerList(SHARDS_FILE);
+	private ConsistentHashRing ring;
+	private List<InetAddress> localIpList = new ArrayList<>();
+	private MembershipLog shardLog = new MembershipLog(LOG_CAPACITY);
+	private PagedPacketWriter summaryWriter = new PagedPacketWriter(bufferPool);
+
+	// Hot standby. The active master streams every change to its table to
+	// the other masters as versioned heartbeats; the rest are standbys that
+	// apply the stream and stay quiet, and the most senior of them takes
+	// over when the stream stops.
+	private PeerList masters = MASTERS_FILE == null ? null : new PeerList(MASTERS_FILE);
+	private boolean active = MASTERS_FILE == null;
+	private long standbySince;
+	private InetAddress activeMaster;
+	private PhiAccrualDetector activeDetector;
 
 	/**
-	 * Receives packet, and hands off to another method
+	 * Drains every datagram waiting on the channel, up to
+	 * MAX_DATAGRAMS_PER_WAKEUP, records each sender as online and notes
+	 * which version of our table it has acknowledged.
+	 *
+	 * @return Number of datagrams received.
 	 */
-	public void listenPacket()
+	public int listenPackets()
 	{
-		byte[] buffer = new byte[1024];
-		DatagramPacket dP = new DatagramPacket(buffer, buffer.length);
+		int received = 0;
+		long now = System.nanoTime();
+
 		try
 		{
-			socket.receive(dP);
-		} catch (SocketTimeoutException ignored)
-		{
-			return;
+			SocketAddress sender;
+			while (received < MAX_DATAGRAMS_PER_WAKEUP && (sender = channel.receive(receiveBuffer)) != null)
+			{
+				receiveBuffer.flip();
+				received++;
+				metrics.received(receiveBuffer.remaining());
+
+				InetAddress address = ((InetSocketAddress) sender).getAddress();
+				if (shards != null && isShard(address))
+				{
+					handleShardSummary(address, now);
+					receiveBuffer.clear();
+					continue;
+				}
+				if (masters != null && masterIndex(address) >= 0)
+				{
+					handleReplication(address, now);
+					receiveBuffer.clear();
+					continue;
+				}
+
+				reader.wrap(receiveBuffer);
+				// Clients that predate the packet format heartbeat with a
+				// bare 2 byte datagram.
+				boolean bare = receiveBuffer.remaining() < AvailabilityPacket.HEADER_SIZE;
+				if (reader.isMalformed() && !bare)
+				{
+					metrics.decodeErrors.increment();
+					receiveBuffer.clear();
+					continue;
+				}
+
+				//Only the first packet of each heartbeat feeds the detector;
+				//probes and later pages come in bursts that would teach it
+				//intervals far shorter than the heartbeat's.
+				PhiAccrualDetector detector = membership.detector(address);
+				if (detector == null)
+				{
+					restoring.remove(address);
+					detector = newDetector(now);
+					membership.markOnline(address, detector, now);
+					membershipLog.record(address, PacketStatus.ONLINE);
+					recordForShards(address, PacketStatus.ONLINE);
+					reporter.report("Node Online " + address.getHostAddress());
+					events.publish(address, PacketStatus.ONLINE);
+					deadlines.schedule(address, now + detector.nanosUntilSuspect(now));
+				} else if (bare || reader.isHeartbeat() && (!reader.isVersioned() || reader.page() == 0))
+				{
+					metrics.heartbeatInterval.record(now - detector.lastHeartbeatNanos());
+					detector.heartbeat(now);
+					membership.touch(address, now);
+					deadlines.schedule(address, now + detector.nanosUntilSuspect(now));
+				}
+
+				if (reader.tellsFormats())
+				{
+					membershipLog.heard(address, reader.readsVersioned(), reader.readsCompact(),
+							reader.answersProbes(), 0);
+				}
+				if (reader.hasLoad())
+				{
+					loads.report(address, reader.cpuLoad(), reader.runQueue(), reader.capacity());
+				}
+				if (!bare && !reader.isHeartbeat())
+				{
+					handleProbes(address, now);
+				}
+				if (reader.isVersioned())
+				{
+					membershipLog.acknowledge(address, reader.ackVersion());
+				}
+				receiveBuffer.clear();
+			}
 		} catch (IOException e)
 		{
 			e.printStackTrace();
 		}
+		return received;
+	}
+
+	/**
+	 * Applies a summary from another shard: the clients it watches that came
+	 * online or went offline. Clients we watch ourselves are left alone, we
+	 * know better than a shard they have moved away from, unless the ring
+	 * now gives them to the sender and it has them online.
+	 */
+	private void handleShardSummary(InetAddress shard, long now)
+	{
+		reader.wrap(receiveBuffer);
+		if (!reader.isVersioned())
+		{
+			metrics.decodeErrors.increment();
+			return;
+		}
+		shardLog.acknowledge(shard, reader.ackVersion());
+		if (!shardLog.accept(shard, reader.baseVersion(), reader.tableVersion(), reader.page(), reader.isLastPage()))
+		{
+			// Missing changes; our next summary's ack makes the shard resend.
+			return;
+		}
+
+		while (reader.next())
+		{
+			InetAddress address = interner.intern(reader);
+			PacketStatus status = reader.status();
+			if (address == null)
+			{
+				continue;
+			}
+			if (membership.detector(address) != null)
+			{
+				if (status != PacketStatus.ONLINE || !isRingOwner(shard, address))
+				{
+					continue;
+				}
+				handOff(address);
+			}
+			if (status == PacketStatus.ONLINE && !membership.isOnline(address))
+			{
+				membership.markOnline(address, null, now);
+				membershipLog.record(address, PacketStatus.ONLINE);
+				events.publish(address, status);
+			} else if (status == PacketStatus.OFFLINE && membership.status(address) == PacketStatus.ONLINE)
+			{
+				membership.markOffline(address);
+				prober.clear(address);
+				membershipLog.record(address, PacketStatus.OFFLINE);
+				events.publish(address, status);
+			}
+		}
+		if (reader.isMalformed())
+		{
+			metrics.decodeErrors.increment();
+		}
+	}
 
-		onlineIpMap.put(dP.getAddress(), Instant.now());
-		offlineIpList.remove(dP.getAddress());
+	/**
+	 * Sends every other shard the changes to the clients we watch since the
+	 * version it last acknowledged, or all of them if it is too far behind.
+	 */
+	private void sendShardSummaries()
+	{
+		InetSocketAddress[] all = shards.peers();
+		for (InetSocketAddress shard : all)
+		{
+			if (isLocal(shard))
+			{
+				continue;
+			}
+			InetAddress address = shard.getAddress();
+			int base = shardLog.acknowledged(address);
+			int version = shardLog.version();
+			int ack = shardLog.appliedFrom(address);
+			summaryWriter.begin(base, version, ack, true);
+			if (!shardLog.writeChangesSince(summaryWriter, base, membership.size()))
+			{
+				summaryWriter.begin(0, version, ack, true);
+				membership.forEach((client, status) ->
+				{
+					if (watches(client, status))
+					{
+						summaryWriter.put(client, status);
+					}
+				});
+			}
+			summaryWriter.finish();
+			for (int i = 0; i < summaryWriter.pageCount(); i++)
+			{
+				sendTo(summaryWriter.page(i), shard);
+			}
+			summaryWriter.reset();
+		}
+	}
+
+	/**
+	 * Handles a packet from another master: either the active master's
+	 * stream, which a standby applies to its own table, or a standby's
+	 * acknowledgement of ours. An active master that hears from a more
+	 * senior active one stands down, so a split heals to one.
+	 */
+	private void handleReplication(InetAddress master, long now)
+	{
+		reader.wrap(receiveBuffer);
+		if (reader.tellsFormats())
+		{
+			membershipLog.heard(master, reader.readsVersioned(), reader.readsCompact(), reader.answersProbes(), 0);
+		}
+		if (!reader.isVersioned())
+		{
+			metrics.decodeErrors.increment();
+			return;
+		}
+		if (!reader.isHeartbeat())
+		{
+			membershipLog.acknowledge(master, reader.ackVersion());
+			return;
+		}
+
+		if (active)
+		{
+			if (masterIndex(master) > selfIndex())
+			{
+				// It stands down once it hears our stream.
+				return;
+			}
+			active = false;
+			reporter.report("Standing by for " + master.getHostAddress());
+		}
+		if (!master.equals(activeMaster))
+		{
+			activeMaster = master;
+			activeDetector = new PhiAccrualDetector(PHI_THRESHOLD, REPLICATION_INTERVAL_MS, TAKEOVER_MS, now);
+		} else if (reader.page() == 0)
+		{
+			activeDetector.heartbeat(now);
+		}
+
+		if (membershipLog.accept(master, reader.baseVersion(), reader.tableVersion(), reader.page(),
+				reader.isLastPage()))
+		{
+			applyReplicated(now);
+			if (!reader.isLastPage())
+			{
+				return;
+			}
+		}
+		// Acknowledge each whole message, or ask for a resend from what we have.
+		sendReplicationAck(master);
+	}
+
+	private void applyReplicated(long now)
+	{
+		while (reader.next())
+		{
+			InetAddress address = interner.intern(reader);
+			PacketStatus status = reader.status();
+			if (address == null)
+			{
+				continue;
+			}
+			if (status == PacketStatus.ONLINE && !membership.isOnline(address))
+			{
+				// Deadlines wait for the takeover; nothing heartbeats a standby.
+				membership.markOnline(address, newDetector(now), now);
+				membershipLog.record(address, PacketStatus.ONLINE);
+				events.publish(address, status);
+			} else if (status == PacketStatus.OFFLINE && membership.status(address) == PacketStatus.ONLINE)
+			{
+				membership.markOffline(address);
+				deadlines.cancel(address);
+				prober.clear(address);
+				membershipLog.record(address, PacketStatus.OFFLINE);
+				events.publish(address, status);
+			}
+		}
+		if (reader.isMalformed())
+		{
+			metrics.decodeErrors.increment();
+		}
+	}
+
+	private void sendReplicationAck(InetAddress master)
+	{
+		ByteBuffer buffer = bufferPool.acquire();
+		AvailabilityPacket.begin(buffer, 0, 0, membershipLog.appliedFrom(master));
+		AvailabilityPacket.finish(buffer, false);
+		int index = masterIndex(master);
+		if (index >= 0)
+		{
+			sendTo(buffer, masters.peers()[index]);
+		}
+		bufferPool.release(buffer);
+	}
+
+	/**
+	 * Runs every REPLICATION_INTERVAL_MS. The active master streams its
+	 * changes to the standbys; a standby takes over once the stream has
+	 * stopped for long enough, or if none has come since it started.
+	 */
+	private void replicationTick()
+	{
+		long now = System.nanoTime();
+		if (active)
+		{
+			sendReplication();
+		} else if (activeDetector == null ? now - standbySince >= TimeUnit.MILLISECONDS.toNanos(TAKEOVER_MS)
+				: activeDetector.isSuspect(now))
+		{
+			takeOver(now);
+		}
+	}
+
+	/**
+	 * Sends every other master the changes to our table since the version it
+	 * last acknowledged, an empty delta if there are none, so the stream
+	 * doubles as our heartbeat to them.
+	 */
+	private void sendReplication()
+	{
+		int encodedBase = -1;
+		int encodedFormat = -1;
+		for (InetSocketAddress master : masters.peers())
+		{
+			if (isLocal(master))
+			{
+				continue;
+			}
+			int base = membershipLog.acknowledged(master.getAddress());
+			// Masters all read versioned packets, the stream needs them.
+			int format = COMPACT && membershipLog.readsCompact(master.getAddress()) ? 1 : 0;
+			if (base != encodedBase || format != encodedFormat)
+			{
+				encodeHeartbeat(base, format, false);
+				encodedBase = base;
+				encodedFormat = format;
+			}
+			for (int i = 0; i < heartbeatWriter.pageCount(); i++)
+			{
+				sendTo(heartbeatWriter.page(i), master);
+			}
+		}
+		heartbeatWriter.reset();
+	}
+
+	/**
+	 * Becomes the active master with the table the stream left us: every
+	 * node it has online gets a fresh detector and deadline, so any that
+	 * died meanwhile are found within one timeout. Clients are heartbeated
+	 * at once, which is how they learn to fail over to us.
+	 */
+	private void takeOver(long now)
+	{
+		active = true;
+		activeMaster = null;
+		activeDetector = null;
+		reporter.report("Taking over as master with " + membership.onlineCount() + " nodes online");
+
+		List<InetAddress> online = new ArrayList<>();
+		membership.forEach(PacketStatus.ONLINE, online::add);
+		for (InetAddress address : online)
+		{
+			PhiAccrualDetector detector = newDetector(now);
+			membership.markOnline(address, detector, now);
+			deadlines.schedule(address, now + detector.nanosUntilSuspect(now));
+		}
+		sendHeartbeat();
+	}
+
+	/**
+	 * @return Our index in the masters file, or -1.
+	 */
+	private int selfIndex()
+	{
+		InetSocketAddress[] all = masters.peers();
+		for (int i = 0; i < all.length; i++)
+		{
+			if (isLocal(all[i]))
+			{
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return Index of address in the masters file, or -1.
+	 */
+	private int masterIndex(InetAddress address)
+	{
+		InetSocketAddress[] all = masters.peers();
+		for (int i = 0; i < all.length; i++)
+		{
+			if (all[i].getAddress().equals(address))
+			{
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private void recordForShards(InetAddress client, PacketStatus status)
+	{
+		if (shards != null)
+		{
+			shardLog.record(client, status);
+		}
+	}
+
+	/**
+	 * @return Whether client is ours to report to the other shards: we are
+	 * watching it, or it is offline and the ring gives it to us.
+	 */
+	private boolean watches(InetAddress client, PacketStatus status)
+	{
+		if (status == PacketStatus.ONLINE)
+		{
+			return membership.detector(client) != null;
+		}
+		return ownsClient(client);
+	}
+
+	/**
+	 * @return Whether we should heartbeat and alert client, always true
+	 * unless sharded.
+	 */
+	private boolean ownsClient(InetAddress client)
+	{
+		if (shards == null)
+		{
+			return true;
+		}
+		InetSocketAddress owner = ringOwner(client);
+		return owner != null && isLocal(owner);
+	}
+
+	private boolean isRingOwner(InetAddress shard, InetAddress client)
+	{
+		InetSocketAddress owner = ringOwner(client);
+		return owner != null && owner.getAddress().equals(shard);
+	}
+
+	/**
+	 * @return The shard the ring gives client to, or null if there are none.
+	 */
+	private InetSocketAddress ringOwner(InetAddress client)
+	{
+		InetSocketAddress[] current = shards.peers();
+		if (ring == null || ring.shards() != current)
+		{
+			ring = new ConsistentHashRing(current);
+		}
+		int owner = ring.owner(client);
+		return owner < 0 ? null : current[owner];
+	}
+
+	/**
+	 * Stops watching a client the ring has moved to another shard, without
+	 * failing it. Its new shard watches it now and tells us if it fails.
+	 */
+	private void handOff(InetAddress client)
+	{
+		deadlines.cancel(client);
+		prober.clear(client);
+		membership.markOnline(client, null, membership.lastSeen(client));
+	}
+
+	private boolean isShard(InetAddress address)
+	{
+		for (InetSocketAddress shard : shards.peers())
+		{
+			if (shard.getAddress().equals(address))
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private boolean isLocal(InetSocketAddress shard)
+	{
+		return shard.getPort() == PORT_NUM && localIpList.contains(shard.getAddress());
 	}
 
 	/**
@@ -64,150 +586,598 @@ public class Server
 		{
 			return;
 		}
+		sendPacket(ByteBuffer.wrap(encodedPacket));
+	}
 
-		for (String socketAddr : ips)
+	/**
+	 * Sends the encoded packet between buffer's position and limit to every
+	 * address in the ip file. Sends that the socket buffer can't take right
+	 * now are copied and queued until the channel becomes writable again, so
+	 * buffer can be reused as soon as this returns.
+	 *
+	 * @param buffer Buffer holding an encoded packet.
+	 */
+	public void sendPacket(ByteBuffer buffer)
+	{
+		if (multicast != null)
+		{
+			// Never set with shards, so every client is ours.
+			sendTo(buffer, multicast.target());
+			return;
+		}
+		for (InetSocketAddress target : peers.peers())
 		{
-			//In file the ips are formatted like xxx.xxx.xxx.xxx:8888
-			String ip = socketAddr.split("\\:")[0];
-			int port = Integer.valueOf(socketAddr.split("\\:")[1]);
+			if (ownsClient(target.getAddress()))
+			{
+				sendTo(buffer, target);
+			}
+		}
+	}
 
-			try
+	/**
+	 * Sends the encoded packet between buffer's position and limit to target,
+	 * leaving buffer's position where it was.
+	 *
+	 * @param buffer Buffer holding an encoded packet.
+	 * @param target Address to send to.
+	 */
+	private void sendTo(ByteBuffer buffer, InetSocketAddress target)
+	{
+		int start = buffer.position();
+		metrics.sent(buffer.remaining());
+		if (!pendingSends.isEmpty())
+		{
+			pendingSends.add(new Outbound(copyOf(buffer), target));
+			return;
+		}
+
+		try
+		{
+			if (channel.send(buffer, target) == 0)
 			{
-				InetAddress inetAddress = InetAddress.getByName(ip);
-				DatagramPacket packet = new DatagramPacket(encodedPacket, encodedPacket.length,
-						inetAddress, port);
-				socket.send(packet);
-			} catch (IOException e)
+				pendingSends.add(new Outbound(copyOf(buffer), target));
+				key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+			}
+		} catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+		buffer.position(start);
+	}
+
+	private static ByteBuffer copyOf(ByteBuffer buffer)
+	{
+		ByteBuffer copy = ByteBuffer.allocate(buffer.remaining());
+		copy.put(buffer.duplicate()).flip();
+		return copy;
+	}
+
+	/**
+	 * Sends a single address and status to every address in the ip file, or
+	 * in piggyback mode queues it for the next heartbeats.
+	 *
+	 * @param address Address the alert is about.
+	 * @param status  New status of address.
+	 */
+	private void sendAlert(InetAddress address, PacketStatus status)
+	{
+		if (piggyback != null)
+		{
+			piggyback.add(address, status, 1);
+			return;
+		}
+		ByteBuffer buffer = bufferPool.acquire();
+		AvailabilityPacket.begin(buffer);
+		AvailabilityPacket.putEntry(buffer, address, status);
+		AvailabilityPacket.finish(buffer, false);
+		sendPacket(buffer);
+		bufferPool.release(buffer);
+	}
+
+	/**
+	 * Sends each address in the ip file a heartbeat carrying the changes to
+	 * our table since the version it last acknowledged, or a full snapshot
+	 * when it is too far behind. Either may span several datagrams. Clients
+	 * that haven't told us they read versioned packets get the whole table
+	 * in plain ones. Clients that are caught up to the same version share
+	 * one encoding.
+	 */
+	private void sendHeartbeat()
+	{
+		if (!active)
+		{
+			return;
+		}
+		long start = System.nanoTime();
+		if (multicast != null)
+		{
+			multicastHeartbeat();
+		} else
+		{
+			unicastHeartbeat();
+		}
+		if (piggyback != null)
+		{
+			piggyback.endRound();
+		}
+		metrics.sendLoop.record(System.nanoTime() - start);
+	}
+
+	private void unicastHeartbeat()
+	{
+		int encodedBase = -1;
+		int encodedFormat = -2;
+
+		for (InetSocketAddress target : peers.peers())
+		{
+			if (!ownsClient(target.getAddress()))
 			{
-				e.printStackTrace();
+				continue;
+			}
+			int base = membershipLog.acknowledged(target.getAddress());
+			int format = formatFor(target.getAddress());
+			if (base != encodedBase || format != encodedFormat)
+			{
+				encodeHeartbeat(base, format, true);
+				encodedBase = base;
+				encodedFormat = format;
+			}
+			for (int i = 0; i < heartbeatWriter.pageCount(); i++)
+			{
+				sendTo(heartbeatWriter.page(i), target);
 			}
 		}
+		heartbeatWriter.reset();
 	}
 
 	/**
-	 * Combines onlineIp and offlineIp into a map that Availability packet can handle.
-	 * Could be implemented in the Packet class.
+	 * Sends the group one heartbeat with the changes since the oldest version
+	 * any client has acknowledged. Clients further ahead just see changes
+	 * they already have again. Acknowledgements still come back on the
+	 * clients' unicast heartbeats. It is in version 3 only once every client
+	 * reads that, and plain while any client may not read version 2. Shards
+	 * stay unicast, so every client is ours.
+	 */
+	private void multicastHeartbeat()
+	{
+		int base = Integer.MAX_VALUE;
+		int format = COMPACT ? 1 : 0;
+		for (InetSocketAddress target : peers.peers())
+		{
+			base = Math.min(base, membershipLog.acknowledged(target.getAddress()));
+			format = Math.min(format, formatFor(target.getAddress()));
+		}
+		encodeHeartbeat(base == Integer.MAX_VALUE ? 0 : base, format, true);
+		for (int i = 0; i < heartbeatWriter.pageCount(); i++)
+		{
+			sendTo(heartbeatWriter.page(i), multicast.target());
+		}
+		heartbeatWriter.reset();
+	}
+
+	/**
+	 * @return -1 to send client plain packets, 0 for version 2, 1 for
+	 * version 3.
+	 */
+	private int formatFor(InetAddress client)
+	{
+		if (!membershipLog.readsVersioned(client))
+		{
+			return -1;
+		}
+		return COMPACT && membershipLog.readsCompact(client) ? 1 : 0;
+	}
+
+	/**
+	 * Encodes a heartbeat with our changes since base, falling back to a full
+	 * snapshot of the table, which is all plain packets can carry, plus
+	 * whichever queued alerts fit.
 	 *
-	 * @return Map containing online/offline ip addresses.
+	 * @param base   Version of our table the client has acknowledged.
+	 * @param format From formatFor.
+	 * @param alerts Whether to add queued alerts, for heartbeats to clients.
 	 */
-	private Map<InetAddress, PacketStatus> combineIpsIntoMap()
+	private void encodeHeartbeat(int base, int format, boolean alerts)
 	{
-		HashMap<InetAddress, PacketStatus> map = new HashMap<>();
-		for (InetAddress address : onlineIpMap.keySet())
+		int version = membershipLog.version();
+		boolean delta = format >= 0;
+		if (delta)
+		{
+			beginHeartbeat(base, version, format);
+			delta = membershipLog.writeChangesSince(heartbeatWriter, base, membership.size());
+		}
+		if (!delta)
 		{
-			map.put(address, PacketStatus.ONLINE);
+			beginHeartbeat(0, version, format);
+			membership.forEach(heartbeatWriter::put);
 		}
-		for (InetAddress address : offlineIpList)
+		if (alerts && piggyback != null)
 		{
-			map.put(address, PacketStatus.OFFLINE);
+			piggyback.fill(heartbeatWriter::putIfRoom);
+		}
+		heartbeatWriter.finish();
+	}
+
+	private void beginHeartbeat(int base, int version, int format)
+	{
+		if (format < 0)
+		{
+			heartbeatWriter.beginPlain(true);
+		} else if (format == 1)
+		{
+			heartbeatWriter.beginCompact(base, version, 0, true, false);
+		} else
+		{
+			heartbeatWriter.begin(base, version, 0, true);
+		}
+	}
+
+	/**
+	 * Sends as many queued datagrams as the socket will take.
+	 */
+	private void flushPendingSends()
+	{
+		Outbound next;
+		while ((next = pendingSends.peek()) != null)
+		{
+			try
+			{
+				if (channel.send(next.payload, next.target) == 0)
+				{
+					return;
+				}
+			} catch (IOException e)
+			{
+				e.printStackTrace();
+			}
+			pendingSends.poll();
 		}
-		return map;
+		key.interestOps(SelectionKey.OP_READ);
+	}
+
+	/**
+	 * @param now Time of the node's first heartbeat.
+	 * @return Failure detector for a node that just came online.
+	 */
+	private PhiAccrualDetector newDetector(long now)
+	{
+		return new PhiAccrualDetector(PHI_THRESHOLD, FIRST_HEARTBEAT_ESTIMATE_MS,
+				TimeUnit.SECONDS.toMillis(NODE_TIMEOUT), now);
 	}
 
 	/**
-	 * Removes nodes that've been offline for more than NODE_OFFLINE time
-	 * from onlineIp list. Also sends packet to all in ip file that a node has gone offline.
+	 * Removes nodes whose suspicion level has reached PHI_THRESHOLD, or that
+	 * have been silent for more than NODE_TIMEOUT, from onlineIp list. Also
+	 * sends packet to all in ip file that a node has gone offline. Only nodes
+	 * whose deadline has come up on the timing wheel are looked at.
 	 */
 	private void pruneNodes()
 	{
-		for (Map.Entry<InetAddress, Instant> ip : onlineIpMap.entrySet())
+		if (!active)
+		{
+			// Nobody heartbeats a standby; takeOver sets fresh deadlines.
+			return;
+		}
+		deadlines.expire(System.nanoTime(), this::nodeExpired);
+	}
+
+	private void nodeExpired(InetAddress address)
+	{
+		PhiAccrualDetector detector = membership.detector(address);
+		if (detector == null && restoring.remove(address))
+		{
+			// Online before our restart, but silent since.
+			membership.markOffline(address);
+			failed(address);
+			return;
+		}
+		if (detector == null || membership.status(address) != PacketStatus.ONLINE)
+		{
+			return;
+		}
+		if (!ownsClient(address))
+		{
+			// It heartbeats its new shard now, silence here means nothing.
+			handOff(address);
+			return;
+		}
+		long now = System.nanoTime();
+		if (!detector.isSuspect(now))
+		{
+			// Heard from again, directly or through a probe.
+			prober.clear(address);
+			deadlines.schedule(address, now + detector.nanosUntilSuspect(now));
+			return;
+		}
+		if (IndirectProber.enabled() && membershipLog.answersProbes(address))
 		{
-			Instant ipLastKnown = ip.getValue();
-			if (Instant.now().isAfter(ipLastKnown.plusSeconds(NODE_TIMEOUT)))
+			// Give the client until the probes time out to answer.
+			long failAt = prober.suspect(address, peers.peers(), this::canProbe, now);
+			if (failAt - now > 0)
 			{
-				System.out.println("Node Assumed Offline - Alerting (Failure): " + ip.getKey().getHostAddress());
-				sendPacket(new AvailabilityPacket(ip.getKey(), PacketStatus.FAIL, false));
-				offlineIpList.add(ip.getKey());
-				onlineIpMap.remove(ip.getKey());
+				deadlines.schedule(address, failAt);
+				return;
 			}
 		}
+		// Left behind, a suspicion would fail the client at once next time.
+		prober.clear(address);
+		if (membership.markOffline(address) != PacketStatus.ONLINE)
+		{
+			return;
+		}
+		metrics.failureDetection.record(now - detector.lastHeartbeatNanos());
+		failed(address);
 	}
 
 	/**
-	 * Reads in IPs from file.
-	 *
-	 * @return Array of ips in string format xxx.xxx.xxx.xxx:xxxx
+	 * Tells everyone address, just marked offline, has failed.
 	 */
-	private String[] readIps()
+	private void failed(InetAddress address)
 	{
-		File file = new File("ips");
-		ArrayList<String> ipList = new ArrayList<>();
+		reporter.report("Node Assumed Offline - Alerting (Failure): " + address.getHostAddress());
+		sendAlert(address, PacketStatus.FAIL);
+		membershipLog.record(address, PacketStatus.OFFLINE);
+		recordForShards(address, PacketStatus.OFFLINE);
+		events.publish(address, PacketStatus.FAIL);
+	}
 
-		try
+	/**
+	 * Passes the probe entries of a packet that isn't a heartbeat, acks for
+	 * the clients we suspect, to the prober.
+	 */
+	private void handleProbes(InetAddress sender, long now)
+	{
+		while (reader.next())
 		{
-			BufferedReader br = new BufferedReader(new FileReader(file));
-			String str;
-			while ((str = br.readLine()) != null)
+			PacketStatus status = reader.status();
+			if (status != null && IndirectProber.isProbe(status))
 			{
-				ipList.add(str);
+				InetAddress address = interner.intern(reader);
+				if (address != null)
+				{
+					prober.handle(sender, address, status, localIpList.contains(address), now);
+				}
 			}
+		}
+	}
 
-		} catch (IOException e)
+	/**
+	 * A suspect answered a probe, so it is alive even if its heartbeats
+	 * aren't getting through. Counts as a heartbeat.
+	 */
+	private void probeAcked(InetAddress address)
+	{
+		PhiAccrualDetector detector = membership.detector(address);
+		if (detector == null)
 		{
-			e.printStackTrace();
+			return;
 		}
+		long now = System.nanoTime();
+		detector.heartbeat(now);
+		membership.touch(address, now);
+		deadlines.schedule(address, now + detector.nanosUntilSuspect(now));
+	}
 
-		return ipList.toArray((new String[0]));
+	/**
+	 * @return Whether client can be asked to probe another: online, watched
+	 * by us so it knows we are its master, and it answers probes.
+	 */
+	private boolean canProbe(InetAddress client)
+	{
+		return membership.isOnline(client) && ownsClient(client) && membershipLog.answersProbes(client);
 	}
 
 	/**
-	 * outputs all ips
+	 * @return Where client is reached, from the ips file, or null if it
+	 * isn't in it.
 	 */
-	private void outputIps()
+	private InetSocketAddress clientAddress(InetAddress client)
 	{
-		System.out.println("----- Online -----");
-		for (InetAddress ip : onlineIpMap.keySet())
+		for (InetSocketAddress target : peers.peers())
 		{
-			System.out.println(ip.getHostAddress());
+			if (target.getAddress().equals(client))
+			{
+				return target;
+			}
 		}
-		System.out.println("----- Offline -----");
-		for (InetAddress ip : offlineIpList)
+		return null;
+	}
+
+	/**
+	 * Reloads the table we had before a restart, if one was kept. Nodes that
+	 * were online are on probation: they stay out of the table, so clients
+	 * keep what they had for them rather than hear them reported online, and
+	 * are failed if they don't heartbeat within NODE_TIMEOUT. The ones that
+	 * do are added as usual.
+	 */
+	private void restore()
+	{
+		if (store == null)
 		{
-			System.out.println(ip.getHostAddress());
+			return;
 		}
-		System.out.println("----------------");
+		long start = System.nanoTime();
+		int restored = store.restore((address, status) ->
+		{
+			if (status == PacketStatus.ONLINE)
+			{
+				restoring.add(address);
+				deadlines.schedule(address, start + TimeUnit.SECONDS.toNanos(NODE_TIMEOUT));
+			} else
+			{
+				membership.markOffline(address);
+			}
+		});
+		store.start("server-store");
+		reporter.report("Restored " + restored + " nodes in "
+				+ TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
 	}
 
 	/**
-	 * Start up the 2 threads, one that receives and outputs, and one that
-	 * sends heartbeats out.
+	 * Gets all local interface InetAddresses, to find ourselves in the
+	 * shards file.
+	 */
+	private List<InetAddress> populateLocalAddresses() throws SocketException
+	{
+		List<InetAddress> listOfAddr = new ArrayList<>();
+		Enumeration<NetworkInterface> e = NetworkInterface.getNetworkInterfaces();
+
+		while (e.hasMoreElements())
+		{
+			Enumeration<InetAddress> ee = e.nextElement().getInetAddresses();
+			while (ee.hasMoreElements())
+			{
+				listOfAddr.add(ee.nextElement());
+			}
+		}
+		return listOfAddr;
+	}
+
+	/**
+	 * Runs the event loop: one thread waits on the selector until a datagram
+	 * arrives, the socket becomes writable or the next scheduler deadline
+	 * passes, then handles whichever of those happened.
+	 */
+	private void eventLoop()
+	{
+		while (true)
+		{
+			try
+			{
+				long nanos = scheduler.nanosUntilNextDeadline();
+				if (nanos == 0)
+				{
+					selector.selectNow();
+				} else
+				{
+					long millis = nanos == Long.MAX_VALUE ? 0 : Math.max(1, TimeUnit.NANOSECONDS.toMillis(nanos));
+					selector.select(millis);
+				}
+				selector.selectedKeys().clear();
+
+				if (key.isValid() && key.isWritable())
+				{
+					flushPendingSends();
+				}
+				listenPackets();
+				scheduler.runDueTasks();
+			} catch (IOException e)
+			{
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Opens the non-blocking channel and starts the event loop thread, which
+	 * receives, sends heartbeats out and prunes timed out nodes.
 	 */
 	public void begin()
 	{
 		try
 		{
-			this.socket = new DatagramSocket(PORT_NUM);
-		} catch (SocketException e)
+			this.channel = DatagramChannel.open();
+			this.channel.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER_BYTES);
+			this.channel.bind(new InetSocketAddress(PORT_NUM));
+			this.channel.configureBlocking(false);
+			this.selector = Selector.open();
+			this.key = channel.register(selector, SelectionKey.OP_READ);
+		} catch (IOException e)
 		{
 			e.printStackTrace();
+			return;
 		}
 
-		new Thread(() ->
+		if (multicast != null && shards != null)
 		{
-			while (true)
+			// The group reaches every client, not only the ones we own.
+			System.out.println("Multicast can't be used with " + SHARDS_FILE + ", staying unicast");
+			multicast = null;
+		}
+		if (multicast != null)
+		{
+			try
+			{
+				multicast.configure(channel);
+			} catch (IOException e)
 			{
-				listenPacket();
-				outputIps();
+				e.printStackTrace();
+				System.out.println("Multicast unavailable, falling back to unicast");
+				multicast = null;
 			}
-		}).start();
+		}
 
-		new Thread(() ->
+		restore();
+		peers.watch();
+		if (shards != null || masters != null)
 		{
-			Instant nextBeat = Instant.now();
-
-			while (true)
+			try
 			{
-				if (Duration.between(Instant.now(), nextBeat).isNegative())
-				{
-					int randSec = random.nextInt(30) + 1;
-					nextBeat = Instant.now().plusSeconds(randSec);
-					sendPacket(new AvailabilityPacket(combineIpsIntoMap(), true));
-				} else
-				{
-					pruneNodes();
-				}
+				localIpList = populateLocalAddresses();
+			} catch (SocketException e)
+			{
+				e.printStackTrace();
 			}
+		}
+		if (masters != null)
+		{
+			if (selfIndex() < 0)
+			{
+				System.out.println("Not in " + MASTERS_FILE + ", running as the only master");
+				masters = null;
+				active = true;
+			} else
+			{
+				// Start as a standby, in case another master is already active.
+				standbySince = System.nanoTime();
+				masters.watch();
+				scheduler.scheduleRepeating(this::replicationTick, REPLICATION_INTERVAL_MS, TimeUnit.MILLISECONDS);
+			}
+		}
+		if (shards != null)
+		{
+			shards.watch();
+			scheduler.scheduleRepeating(this::sendShardSummaries, SHARD_SUMMARY_INTERVAL_MS, TimeUnit.MILLISECONDS);
+		}
+		reporter.start("server-reporter");
+		metrics.export();
+		MembershipEndpoint.configured(membership);
+		scheduler.scheduleJittered(this::sendHeartbeat, 1, 30);
+		scheduler.scheduleRepeating(this::pruneNodes, WHEEL_TICK_MS, TimeUnit.MILLISECONDS);
+		scheduler.scheduleRepeating(loads::refresh, LOAD_REFRESH_MS, TimeUnit.MILLISECONDS);
+
+		new Thread(this::eventLoop, "server-event-loop").start();
+	}
 
-		}).start();
+	/**
+	 * @return Ranking of online clients by the load on their heartbeats, for
+	 * placing work; safe to query from any thread.
+	 */
+	public LoadBalancer loads()
+	{
+		return loads;
+	}
+
+	/**
+	 * @return Membership changes, for listeners to subscribe to.
+	 */
+	public MembershipEvents events()
+	{
+		return events;
+	}
+
+	/**
+	 * Datagram the socket couldn't take yet.
+	 */
+	private static class Outbound
+	{
+		private final ByteBuffer payload;
+		private final SocketAddress target;
+
+		private Outbound(ByteBuffer payload, SocketAddress target)
+		{
+			this.payload = payload;
+			this.target = target;
+		}
 	}
 }
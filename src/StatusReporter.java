@@ -0,0 +1,125 @@
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Team Rusty Buckets
+ * High Availability Cluster: Project 1
+ * Cameron Moberg, Eli Charleville, Evan Gauer
+ */
+
+/**
+ * Writes status output on its own thread so a slow terminal never holds up
+ * receiving. Membership transitions are queued as they happen and printed
+ * in order; if the queue is full they are counted and dropped rather than
+ * blocking the caller. The whole table is printed at most once every
+ * hac.report.interval seconds (10 by default), and only if it changed.
+ */
+public class StatusReporter
+{
+	private static int QUEUE_CAPACITY = 1024;
+	private static int SUMMARY_INTERVAL_SEC = Integer.getInteger("hac.report.interval", 10);
+
+	private final MembershipTable membership;
+	private final boolean enabled;
+	private final BlockingQueue<String> queue;
+	private final AtomicInteger dropped = new AtomicInteger();
+	private int summarizedVersion = -1;
+
+	/**
+	 * @param membership Table to summarize.
+	 */
+	public StatusReporter(MembershipTable membership)
+	{
+		this(membership, true);
+	}
+
+	/**
+	 * @param membership Table to summarize.
+	 * @param enabled    false to drop everything, as thousands of simulated
+	 *                   nodes in one process want.
+	 */
+	public StatusReporter(MembershipTable membership, boolean enabled)
+	{
+		this.membership = membership;
+		this.enabled = enabled;
+		this.queue = new ArrayBlockingQueue<>(enabled ? QUEUE_CAPACITY : 1);
+	}
+
+	/**
+	 * Queues a line to print. Never blocks.
+	 */
+	public void report(String line)
+	{
+		if (enabled && !queue.offer(line))
+		{
+			dropped.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Starts the daemon thread that prints.
+	 *
+	 * @param name Name for the thread.
+	 */
+	public void start(String name)
+	{
+		Thread thread = new Thread(this::run, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private void run()
+	{
+		long interval = TimeUnit.SECONDS.toNanos(SUMMARY_INTERVAL_SEC);
+		long nextSummary = System.nanoTime() + interval;
+
+		while (true)
+		{
+			try
+			{
+				String line = queue.poll(Math.max(0, nextSummary - System.nanoTime()), TimeUnit.NANOSECONDS);
+				if (line != null)
+				{
+					System.out.println(line);
+				}
+			} catch (InterruptedException e)
+			{
+				return;
+			}
+
+			int lost = dropped.getAndSet(0);
+			if (lost > 0)
+			{
+				System.out.println("(" + lost + " status messages dropped)");
+			}
+			if (System.nanoTime() - nextSummary >= 0)
+			{
+				summarize();
+				nextSummary = System.nanoTime() + interval;
+			}
+		}
+	}
+
+	/**
+	 * Prints all ips, if anything changed since they were last printed.
+	 */
+	private void summarize()
+	{
+		int version = membership.version();
+		if (version == summarizedVersion)
+		{
+			return;
+		}
+		summarizedVersion = version;
+
+		StringBuilder out = new StringBuilder();
+		out.append("----- Online -----\n");
+		membership.forEach(PacketStatus.ONLINE, ip -> out.append(ip.getHostAddress()).append('\n'));
+		out.append("----- Offline -----\n");
+		membership.forEach(PacketStatus.OFFLINE, ip -> out.append(ip.getHostAddress()).append('\n'));
+		out.append("----------------");
+		System.out.println(out);
+	}
+}
@@ -0,0 +1,192 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Team Rusty Buckets
+ * High Availability Cluster: Project 1
+ * Cameron Moberg, Eli Charleville, Evan Gauer
+ */
+
+/**
+ * Hashed timing wheel (Varghese and Lauck) holding one deadline per key.
+ * Deadlines hash into a ring of tick sized buckets, each an intrusive
+ * linked list, so scheduling, rescheduling and cancelling a key are O(1)
+ * and expiring only visits the buckets whose tick has passed. Deadlines
+ * further out than one turn of the wheel wait in their bucket until the
+ * turn they fall in.
+ *
+ * @param <K> Key each deadline belongs to.
+ */
+public class TimingWheel<K>
+{
+	private final long tickNanos;
+	private final Node<K>[] buckets;
+	private final int mask;
+	private final Map<K, Node<K>> nodes = new HashMap<>();
+	private long lastTick;
+
+	/**
+	 * @param tickNanos Width of one bucket; deadlines fire up to this late.
+	 * @param size      Number of buckets, rounded up to a power of two.
+	 * @param nowNanos  Current time, from System.nanoTime.
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public TimingWheel(long tickNanos, int size, long nowNanos)
+	{
+		int buckets = Integer.highestOneBit(Math.max(1, size - 1)) << 1;
+		this.tickNanos = tickNanos;
+		this.buckets = new Node[buckets];
+		this.mask = buckets - 1;
+		this.lastTick = nowNanos / tickNanos;
+	}
+
+	/**
+	 * Sets, or moves, the deadline for key.
+	 *
+	 * @param key           Key the deadline is for.
+	 * @param deadlineNanos When key expires, from System.nanoTime.
+	 */
+	public synchronized void schedule(K key, long deadlineNanos)
+	{
+		Node<K> node = nodes.get(key);
+		if (node == null)
+		{
+			node = new Node<>(key);
+			nodes.put(key, node);
+		} else
+		{
+			unlink(node);
+		}
+
+		// Round up so a bucket is never visited before its deadlines are due.
+		long tick = Math.max(lastTick + 1, (deadlineNanos + tickNanos - 1) / tickNanos);
+		node.deadline = deadlineNanos;
+		node.bucket = (int) (tick & mask);
+		node.next = buckets[node.bucket];
+		if (node.next != null)
+		{
+			node.next.prev = node;
+		}
+		buckets[node.bucket] = node;
+	}
+
+	/**
+	 * Removes key's deadline, if it has one.
+	 */
+	public synchronized void cancel(K key)
+	{
+		Node<K> node = nodes.remove(key);
+		if (node != null)
+		{
+			unlink(node);
+		}
+	}
+
+	/**
+	 * Visits every bucket whose tick has passed since the last call and hands
+	 * each key whose deadline is due to onExpired, after removing it. Keys
+	 * are handed over once the wheel's lock is released, so onExpired may
+	 * take other locks, block or schedule keys again.
+	 *
+	 * @param nowNanos  Current time, from System.nanoTime.
+	 * @param onExpired Called with each expired key.
+	 */
+	public void expire(long nowNanos, Consumer<K> onExpired)
+	{
+		List<K> expired = null;
+		synchronized (this)
+		{
+			long nowTick = nowNanos / tickNanos;
+			// A full turn visits every bucket, so there is no point going round twice.
+			long from = Math.max(lastTick + 1, nowTick - mask);
+
+			for (long tick = from; tick <= nowTick; tick++)
+			{
+				Node<K> node = buckets[(int) (tick & mask)];
+				while (node != null)
+				{
+					Node<K> next = node.next;
+					if (node.deadline <= nowNanos)
+					{
+						unlink(node);
+						nodes.remove(node.key);
+						if (expired == null)
+						{
+							expired = new ArrayList<>();
+						}
+						expired.add(node.key);
+					}
+					node = next;
+				}
+			}
+			lastTick = Math.max(lastTick, nowTick);
+		}
+		if (expired != null)
+		{
+			for (K key : expired)
+			{
+				onExpired.accept(key);
+			}
+		}
+	}
+
+	/**
+	 * @param nowNanos Current time, from System.nanoTime.
+	 * @return Nanoseconds until the next non-empty bucket is due, or
+	 * Long.MAX_VALUE if nothing is scheduled.
+	 */
+	public synchronized long nanosUntilNextBucket(long nowNanos)
+	{
+		if (nodes.isEmpty())
+		{
+			return Long.MAX_VALUE;
+		}
+		for (long tick = lastTick + 1; tick <= lastTick + buckets.length; tick++)
+		{
+			if (buckets[(int) (tick & mask)] != null)
+			{
+				return Math.max(0, tick * tickNanos - nowNanos);
+			}
+		}
+		return Long.MAX_VALUE;
+	}
+
+	public synchronized int size()
+	{
+		return nodes.size();
+	}
+
+	private void unlink(Node<K> node)
+	{
+		if (node.prev != null)
+		{
+			node.prev.next = node.next;
+		} else if (buckets[node.bucket] == node)
+		{
+			buckets[node.bucket] = node.next;
+		}
+		if (node.next != null)
+		{
+			node.next.prev = node.prev;
+		}
+		node.prev = null;
+		node.next = null;
+	}
+
+	private static class Node<K>
+	{
+		private final K key;
+		private long deadline;
+		private int bucket;
+		private Node<K> prev;
+		private Node<K> next;
+
+		private Node(K key)
+		{
+			this.key = key;
+		}
+	}
+}
@@ -0,0 +1,20 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+
+/**
+ * Team Rusty Buckets
+ * High Availability Cluster: Project 1
+ * Cameron Moberg, Eli Charleville, Evan Gauer
+ */
+
+/**
+ * Where a node's outgoing datagrams go. Normally straight to its
+ * DatagramSocket; the simulator routes them over a virtual network instead.
+ */
+public interface Transport
+{
+	/**
+	 * Sends packet. The packet and its data may be reused once this returns.
+	 */
+	void send(DatagramPacket packet) throws IOException;
+}